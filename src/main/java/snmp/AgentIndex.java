@@ -0,0 +1,44 @@
+package snmp;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Maps the IP address of a device to the agents configured for it, so that
+ * incoming traps are routed without scanning every agent. Several agents may
+ * share one address (different ports or contexts); a trap from that address
+ * goes to all of them.
+ */
+class AgentIndex {
+
+	private final ConcurrentMap<InetAddress, Set<AgentNode>> agents = new ConcurrentHashMap<InetAddress, Set<AgentNode>>();
+
+	void add(InetAddress address, AgentNode agent) {
+		Set<AgentNode> set = agents.get(address);
+		if (set == null) {
+			Set<AgentNode> newSet = new CopyOnWriteArraySet<AgentNode>();
+			set = agents.putIfAbsent(address, newSet);
+			if (set == null) set = newSet;
+		}
+		set.add(agent);
+	}
+
+	void remove(InetAddress address, AgentNode agent) {
+		Set<AgentNode> set = agents.get(address);
+		if (set != null) {
+			set.remove(agent);
+			// the set is left in place when empty, addresses are few and get reused
+		}
+	}
+
+	Set<AgentNode> get(InetAddress address) {
+		Set<AgentNode> set = agents.get(address);
+		if (set == null) return Collections.emptySet();
+		return set;
+	}
+
+}
@@ -1,19 +1,40 @@
 package snmp;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.Permission;
 import org.dsa.iot.dslink.node.actions.Action;
 import org.dsa.iot.dslink.node.actions.ActionResult;
+import org.dsa.iot.dslink.node.actions.EditorType;
 import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.ResultType;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.TimeUtils;
 import org.dsa.iot.dslink.util.json.JsonObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.snmp4j.AbstractTarget;
 import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.ScopedPDU;
 import org.snmp4j.UserTarget;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.mp.SnmpConstants;
 import org.snmp4j.security.AuthMD5;
 import org.snmp4j.security.AuthSHA;
 import org.snmp4j.security.PrivAES128;
@@ -24,8 +45,13 @@ import org.snmp4j.security.SecurityLevel;
 import org.snmp4j.security.UsmUser;
 import org.snmp4j.smi.Address;
 import org.snmp4j.smi.GenericAddress;
+import org.snmp4j.smi.Integer32;
 import org.snmp4j.smi.OID;
 import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.SMIConstants;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
 import org.dsa.iot.dslink.util.handler.Handler;
 
 import snmp.SnmpLink.SnmpVersion;
@@ -36,29 +62,111 @@ class AgentNode extends SnmpNode {
         LOGGER = LoggerFactory.getLogger(AgentNode.class);
     }
 	
+	static final int DEFAULT_MAX_OIDS_PER_REQUEST = 20;
+	static final int DEFAULT_MAX_IN_FLIGHT = 4;
+	
 	long interval;
+	int maxOidsPerRequest;
+	int maxInFlight;
 	AbstractTarget target;
 	private Node statnode;
+	private InetAddress trapSource;
+	// subscribed OID nodes with their poll state
+	final ConcurrentMap<Node, PolledOid> subscribed = new ConcurrentHashMap<Node, PolledOid>();
+	// batches of the subscribed nodes, rebuilt when subscriptions or the batch size change
+	private volatile PollPlan pollPlan;
+	// maxOidsPerRequest, lowered while the agent answers tooBig
+	private volatile int batchSize = DEFAULT_MAX_OIDS_PER_REQUEST;
+	// the agent rejected sysUpTime, so rates go without restart detection
+	private volatile boolean noUpTime = false;
+	// PDU settings cached by setTarget, so requests don't go through the attributes
+	private volatile boolean scoped = false;
+	private volatile OctetString contextEngineId;
+	private volatile OctetString contextName;
+	final RequestGate requestGate = new RequestGate(DEFAULT_MAX_IN_FLIGHT);
+	PollScheduler.Task pollTask;
+	private final AtomicBoolean cycleActive = new AtomicBoolean(false);
+	private final AtomicInteger batchesPending = new AtomicInteger();
+	private final AtomicLong skippedCycles = new AtomicLong();
+	final TrapBuffer traps;
+	final TrapPipeline.AgentQueue trapUpdates = new TrapPipeline.AgentQueue();
+	volatile boolean trapsSubscribed = false;
+	// publish counters as rates unless an OID says otherwise
+	volatile boolean counterRate;
+	// false until setup() first runs, which for restored SNMPv3 agents is deferred
+	private volatile boolean setUp = false;
+	private final Object setupLock = new Object();
+	final RequestMetrics metrics = new RequestMetrics();
+	// the user this agent added to the shared USM, if any
+	private OctetString usmUser;
 	
 	AgentNode(SnmpLink slink, Node mynode) {
+		this(slink, mynode, true);
+	}
+	
+	/**
+	 * @param setupNow whether to set up the connection to the device right
+	 *        away, rather than leave that to a later call to setup()
+	 */
+	AgentNode(SnmpLink slink, Node mynode, boolean setupNow) {
 		super(slink, mynode);
 		root = this;
+		node.setMetaData(this);
 		statnode = node.createChild("STATUS").setValueType(ValueType.STRING).setValue(new Value("Setting up agent")).build();
 		this.interval = node.getAttribute("Polling Interval").getNumber().longValue();
+		Value maxOids = node.getAttribute("Max OIDs per Request");
+		this.maxOidsPerRequest = (maxOids != null) ? maxOids.getNumber().intValue() : DEFAULT_MAX_OIDS_PER_REQUEST;
+		if (maxOids == null) node.setAttribute("Max OIDs per Request", new Value(maxOidsPerRequest));
+		batchSize = Math.max(1, maxOidsPerRequest);
+		Value maxReqs = node.getAttribute("Max Requests in Flight");
+		this.maxInFlight = (maxReqs != null) ? maxReqs.getNumber().intValue() : DEFAULT_MAX_IN_FLIGHT;
+		if (maxReqs == null) node.setAttribute("Max Requests in Flight", new Value(maxInFlight));
+		requestGate.setMax(maxInFlight);
+		Value historySize = node.getAttribute("Trap History Size");
+		traps = new TrapBuffer((historySize != null) ? historySize.getNumber().intValue() : TrapBuffer.DEFAULT_CAPACITY);
+		if (historySize == null) node.setAttribute("Trap History Size", new Value(traps.capacity()));
+		Value rates = node.getAttribute("Counter Rate");
+		counterRate = rates != null && rates.getBool() != null && rates.getBool();
+		if (rates == null) node.setAttribute("Counter Rate", new Value(counterRate));
 
 		final Node tnode = node.createChild("TRAPS").setValueType(ValueType.STRING).build();
 		String emptyjson = new JsonObject().toString();
 		tnode.setValue(new Value(emptyjson));
+		// the latest trap is only rendered as JSON while someone is watching
+		tnode.getListener().setOnSubscribeHandler(new Handler<Node>() {
+			public void handle(Node event) {
+				trapsSubscribed = true;
+				link.publishLatestTrap(AgentNode.this);
+			}
+		});
+		tnode.getListener().setOnUnsubscribeHandler(new Handler<Node>() {
+			public void handle(Node event) {
+				trapsSubscribed = false;
+			}
+		});
 		Action act = new Action(Permission.READ, new Handler<ActionResult>() {
 			public void handle(ActionResult event) {
+				traps.clear();
 				tnode.setValue(new Value(new JsonObject().toString()));
 			}
 		});
 		tnode.createChild("clear").setAction(act).build().setSerializable(false);
+		act = new Action(Permission.READ, new TrapQueryHandler());
+		Parameter param = new Parameter("Time Range", ValueType.STRING);
+		param.setEditorType(EditorType.DATE_RANGE);
+		act.addParameter(param);
+		act.addParameter(new Parameter("Trap OID", ValueType.STRING, new Value("")));
+		act.addResult(new Parameter("Time", ValueType.STRING));
+		act.addResult(new Parameter("Trap", ValueType.STRING));
+		act.addResult(new Parameter("Variables", ValueType.STRING));
+		act.addResult(new Parameter("Suppressed", ValueType.NUMBER));
+		act.setResultType(ResultType.TABLE);
+		tnode.createChild("query").setAction(act).build().setSerializable(false);
+		metrics.createNodes(node);
 		
 		makeEditAction();
 		
-		setup();		
+		if (setupNow) setup();
 	}
 	
 	private void makeEditAction() {
@@ -80,6 +188,10 @@ class AgentNode extends SnmpNode {
 		act.addParameter(new Parameter("Context Name", ValueType.STRING, node.getAttribute("Context Name")));
 		act.addParameter(new Parameter("Retries", ValueType.NUMBER, node.getAttribute("Retries")));
 		act.addParameter(new Parameter("Timeout", ValueType.NUMBER, node.getAttribute("Timeout")));
+		act.addParameter(new Parameter("Max OIDs per Request", ValueType.NUMBER, new Value(maxOidsPerRequest)));
+		act.addParameter(new Parameter("Max Requests in Flight", ValueType.NUMBER, new Value(maxInFlight)));
+		act.addParameter(new Parameter("Trap History Size", ValueType.NUMBER, new Value(traps.capacity())));
+		act.addParameter(new Parameter("Counter Rate", ValueType.BOOL, new Value(counterRate)));
 		Node anode = node.getChild("edit");
 		if (anode == null) node.createChild("edit").setAction(act).build().setSerializable(false);
 		else anode.setAction(act);
@@ -90,8 +202,9 @@ class AgentNode extends SnmpNode {
 			
 			String name, ip, port, comStr, secName, authProt, authPass, privProt, privPass, engine, cEngine, cName;
 			SnmpVersion version;
-			int retries;
+			int retries, maxOids, maxReqs, historySize;
 			long timeout;
+			boolean rates;
 			
 			try {
 				name = event.getParameter("Name", ValueType.STRING).getString();
@@ -111,6 +224,10 @@ class AgentNode extends SnmpNode {
 				cName = event.getParameter("Context Name", ValueType.STRING).getString();
 				retries = event.getParameter("Retries", ValueType.NUMBER).getNumber().intValue();
 				timeout = event.getParameter("Timeout", ValueType.NUMBER).getNumber().longValue();
+				maxOids = event.getParameter("Max OIDs per Request", ValueType.NUMBER).getNumber().intValue();
+				maxReqs = event.getParameter("Max Requests in Flight", ValueType.NUMBER).getNumber().intValue();
+				historySize = event.getParameter("Trap History Size", ValueType.NUMBER).getNumber().intValue();
+				rates = event.getParameter("Counter Rate", ValueType.BOOL).getBool();
 				interval = (long) (1000*event.getParameter("Polling Interval", ValueType.NUMBER).getNumber().doubleValue());
 			} catch (RuntimeException e) {
 				return;
@@ -131,9 +248,20 @@ class AgentNode extends SnmpNode {
 			node.setAttribute("Context Name", new Value(cName));
 			node.setAttribute("Retries", new Value(retries));
 			node.setAttribute("Timeout", new Value(timeout));
+			maxOidsPerRequest = Math.max(1, maxOids);
+			node.setAttribute("Max OIDs per Request", new Value(maxOidsPerRequest));
+			maxInFlight = Math.max(1, maxReqs);
+			node.setAttribute("Max Requests in Flight", new Value(maxInFlight));
+			requestGate.setMax(maxInFlight);
+			traps.resize(historySize);
+			node.setAttribute("Trap History Size", new Value(traps.capacity()));
+			counterRate = rates;
+			node.setAttribute("Counter Rate", new Value(counterRate));
 			
 			if (!name.equals(node.getName())) {
+				// the renamed copy sets itself up
 				rename(name);
+				return;
 			}
 			
 			setup();
@@ -143,6 +271,33 @@ class AgentNode extends SnmpNode {
 		}
 	}
 	
+	/**
+	 * Returns the buffered traps matching a time range and trap OID prefix as
+	 * a table, oldest first.
+	 */
+	private class TrapQueryHandler implements Handler<ActionResult> {
+		public void handle(ActionResult event) {
+			Value rangeVal = event.getParameter("Time Range");
+			Value oidVal = event.getParameter("Trap OID");
+			long[] range = TrapBuffer.parseTimeRange((rangeVal != null) ? rangeVal.getString() : null);
+			OID prefix = null;
+			if (oidVal != null && oidVal.getString() != null && !oidVal.getString().trim().isEmpty()) {
+				prefix = new OID(oidVal.getString().trim());
+			}
+			final Table table = event.getTable();
+			traps.query(range[0], range[1], prefix, new TrapBuffer.Visitor() {
+				public void visit(long time, OID trapOid, PDU pdu, int suppressed) {
+					JsonObject vars = new JsonObject();
+					for (VariableBinding vb: pdu.toArray()) {
+						vars.put(link.parseOid(vb.getOid()), vb.toValueString());
+					}
+					String trap = (trapOid != null) ? link.parseOid(trapOid) : "";
+					table.addRow(Row.make(new Value(TimeUtils.format(time)), new Value(trap), new Value(vars.toString()), new Value(suppressed)));
+				}
+			});
+		}
+	}
+	
 	@Override
 	protected void duplicate(String name) {
 		JsonObject jobj = link.copySerializer.serialize();
@@ -154,29 +309,87 @@ class AgentNode extends SnmpNode {
 		an.restoreLastSession();
 	}
 	
+	@Override
+	void remove() {
+		link.stopPolling(this);
+		if (trapSource != null) link.agentIndex.remove(trapSource, this);
+		releaseUsmUser();
+		super.remove();
+	}
+	
 	public SnmpVersion getVersion() {
 		SnmpVersion v = SnmpVersion.parse(node.getAttribute("SNMP Version").getString());
 		if (v==null) v = SnmpVersion.v2c;
 		return v;
 	}
 	
-	private void setup() {
+	void setup() {
+		setUp = true;
+		// the poll requests are built with the PDU settings of the target
+		batchSize = Math.max(1, maxOidsPerRequest);
+		noUpTime = false;
+		invalidatePollPlan();
 		try {
 			setTarget();
 		} catch (Exception e) {
 			LOGGER.debug("", e);
 		}
+		indexTrapSource();
 		if (target != null) {
-			statnode.setValue(new Value("Ready"));
+			updateStatus();
 		} else {
 			statnode.setValue(new Value("Failed to set up connection to device"));
 		}
 	}
 	
+	/**
+	 * Leaves setting up the connection to the device for later, when the
+	 * agent is first used or the startup restore gets to it. Traps from the
+	 * agent are still matched to it in the meantime.
+	 */
+	void deferSetup() {
+		indexTrapSource();
+		statnode.setValue(new Value("Waiting for setup"));
+	}
+	
+	/**
+	 * Sets up the connection to the device if that was deferred and has not
+	 * happened yet.
+	 */
+	void ensureSetup() {
+		if (setUp) return;
+		synchronized (setupLock) {
+			if (!setUp) setup();
+		}
+	}
+	
+	/**
+	 * Registers this agent under its current IP in the link's trap source
+	 * index, replacing the previous registration.
+	 */
+	private void indexTrapSource() {
+		InetAddress source = sourceAddress(node);
+		if (trapSource != null && !trapSource.equals(source)) link.agentIndex.remove(trapSource, this);
+		if (source != null) link.agentIndex.add(source, this);
+		trapSource = source;
+	}
+	
+	/**
+	 * Returns the IP address that traps from the agent of the given node come
+	 * from, or null if its address does not parse.
+	 */
+	static InetAddress sourceAddress(Node agentNode) {
+		Value ip = agentNode.getAttribute("IP");
+		Value port = agentNode.getAttribute("Port");
+		if (ip == null || port == null) return null;
+		Address ad = GenericAddress.parse("udp:" + ip.getString() + "/" + port.getString());
+		return (ad instanceof UdpAddress) ? ((UdpAddress) ad).getInetAddress() : null;
+	}
+	
 	protected void setTarget() {
 		AbstractTarget target;
 		statnode.setValue(new Value("setting up connection to device"));
-		if (snmp.getUSM() != null) snmp.getUSM().removeAllUsers();
+		releaseUsmUser();
 		String ip = node.getAttribute("IP").getString() + "/" + node.getAttribute("Port").getString();
 		String comString = node.getAttribute("Community String").getString();
 		SnmpVersion version = SnmpVersion.parse(node.getAttribute("SNMP Version").getString());
@@ -226,8 +439,9 @@ class AgentNode extends SnmpNode {
 			OctetString engineId = createOctetString(node.getAttribute("Engine ID").getString());
 	        
 			if (engineId != null) snmp.setLocalEngine(engineId.getValue(), 0, 0);
-		    snmp.getUSM().addUser(securityName,
+		    link.addUsmUser(snmp.getUSM(), securityName,
 		                new UsmUser(securityName, authProtocol, authPassphrase, privProtocol, privPassphrase));
+		    usmUser = securityName;
 		    
 		    UserTarget utarget = new UserTarget();
 	        if (authPassphrase.length() > 0) {
@@ -258,9 +472,314 @@ class AgentNode extends SnmpNode {
 		target.setRetries(retries);
 		target.setTimeout(timeout);
 		target.setVersion(version.getVersion());
+		cachePduSettings(version);
 		this.target = target;
 	}
 	
+	private synchronized void releaseUsmUser() {
+		if (usmUser != null && snmp.getUSM() != null) link.removeUsmUser(snmp.getUSM(), usmUser);
+		usmUser = null;
+	}
+	
+	private void cachePduSettings(SnmpVersion version) {
+		scoped = (version == SnmpVersion.v3);
+		if (scoped) {
+			OctetString cEngine = createOctetString(node.getAttribute("Context Engine").getString());
+			OctetString cName = createOctetString(node.getAttribute("Context Name").getString());
+			contextEngineId = (cEngine.length() > 0) ? cEngine : null;
+			contextName = (cName.length() > 0) ? cName : null;
+		}
+	}
+	
+	/**
+	 * Drops the cached poll batches; the next poll cycle rebuilds them.
+	 */
+	void invalidatePollPlan() {
+		pollPlan = null;
+	}
+	
+	/**
+	 * Sends one GET cycle for every subscribed OID of this agent, packing
+	 * up to maxOidsPerRequest varbinds into each PDU. If the previous cycle
+	 * still has requests outstanding, this cycle is skipped rather than
+	 * stacked on top of it.
+	 */
+	void poll() {
+		if (target == null) return;
+		if (!cycleActive.compareAndSet(false, true)) {
+			skippedCycles.incrementAndGet();
+			updateStatus();
+			return;
+		}
+		PollPlan plan = pollPlan;
+		if (plan == null) {
+			plan = new PollPlan();
+			pollPlan = plan;
+		}
+		if (plan.batches.length == 0) {
+			cycleActive.set(false);
+			return;
+		}
+		batchesPending.set(plan.batches.length);
+		for (int i = 0; i < plan.batches.length; i++) {
+			requestGate.submit(plan.listeners[i]);
+		}
+	}
+	
+	/**
+	 * The subscribed nodes the agent has not rejected, split into batches of
+	 * at most batchSize, with the request and response listener of each
+	 * batch, which are reused every cycle. Batches with OIDs in rate mode
+	 * also ask for sysUpTime, as their first varbind, to tell counter resets
+	 * on restart from counter wraps.
+	 */
+	private class PollPlan {
+		final PolledOid[][] batches;
+		final PollListener[] listeners;
+		
+		PollPlan() {
+			List<PolledOid> oids = new ArrayList<PolledOid>(subscribed.size());
+			for (PolledOid polled: subscribed.values()) {
+				if (!polled.rejected) oids.add(polled);
+			}
+			int size = Math.max(1, batchSize);
+			int count = (oids.size() + size - 1) / size;
+			batches = new PolledOid[count][];
+			listeners = new PollListener[count];
+			for (int b = 0; b < count; b++) {
+				int from = b * size;
+				int to = Math.min(oids.size(), from + size);
+				batches[b] = oids.subList(from, to).toArray(new PolledOid[to - from]);
+				listeners[b] = new PollListener(batches[b]);
+			}
+		}
+	}
+	
+	private boolean wantsUpTime(PolledOid[] batch) {
+		if (noUpTime) return false;
+		for (PolledOid polled: batch) {
+			if (polled.rate) return true;
+		}
+		return false;
+	}
+	
+	private static VariableBinding[] bindings(PolledOid[] batch, boolean upTime) {
+		int offset = upTime ? 1 : 0;
+		VariableBinding[] bindings = new VariableBinding[batch.length + offset];
+		if (upTime) bindings[0] = new VariableBinding(SnmpConstants.sysUpTime);
+		for (int i = 0; i < batch.length; i++) {
+			bindings[i + offset] = new VariableBinding(batch[i].oid);
+		}
+		return bindings;
+	}
+	
+	/**
+	 * Recreates the poll state of the subscribed OIDs, e.g. after the
+	 * agent's counter mode changed.
+	 */
+	void resetPollState() {
+		for (Map.Entry<Node, PolledOid> entry: subscribed.entrySet()) {
+			entry.setValue(new PolledOid(entry.getKey(), entry.getValue().oid, counterRate));
+		}
+		invalidatePollPlan();
+	}
+	
+	private void batchDone() {
+		if (batchesPending.decrementAndGet() <= 0) {
+			cycleActive.set(false);
+		}
+	}
+	
+	private void updateStatus() {
+		long skipped = skippedCycles.get();
+		if (skipped == 0) {
+			statnode.setValue(new Value("Ready"));
+		} else {
+			statnode.setValue(new Value("Ready, skipped poll cycles: " + skipped));
+		}
+	}
+	
+
+	PDU createPdu() {
+		if (scoped) {
+			ScopedPDU spdu = new ScopedPDU();
+			if (contextEngineId != null) {
+				spdu.setContextEngineID(contextEngineId);
+			}
+			if (contextName != null) {
+				spdu.setContextName(contextName);
+			}
+			return spdu;
+		}
+		return new PDU();
+	}
+	
+	/**
+	 * Sends the GET request of one batch when run, and distributes the
+	 * varbinds of the response back to the nodes they were requested for.
+	 * Responses keep the order of the request, so the i-th varbind belongs
+	 * to the i-th node of the batch. A batch has at most one request in
+	 * flight, so its PDU is reused from cycle to cycle. SNMP4J keeps a
+	 * request ID that is not 0, so the ID is reset before every send to get
+	 * a new one; otherwise a late response to one cycle would be taken for
+	 * the response to the next. When the agent rejects sysUpTime or an OID
+	 * of the batch, the batch drops it for good and is resent.
+	 */
+	private class PollListener implements ResponseDispatcher.Callback, Runnable {
+		private volatile PolledOid[] batch;
+		// the first varbind is sysUpTime
+		private volatile boolean upTime;
+		private volatile PDU pdu;
+		// of the request in flight
+		volatile long sentAt;
+		volatile AbstractTarget sentTo;
+		
+		PollListener(PolledOid[] batch) {
+			rebuild(batch);
+		}
+		
+		private void rebuild(PolledOid[] batch) {
+			this.batch = batch;
+			upTime = wantsUpTime(batch);
+			PDU pdu = createPdu();
+			pdu.addAll(bindings(batch, upTime));
+			pdu.setType(PDU.GET);
+			this.pdu = pdu;
+		}
+		
+		/**
+		 * Sends the request, holding a permit of the request gate.
+		 */
+		public void run() {
+			PDU pdu = this.pdu;
+			try {
+				if (LOGGER.isDebugEnabled()) LOGGER.debug("sending pdu: " + pdu + "   to target: " + target);
+				AbstractTarget t = target;
+				// a batch whose OIDs were all rejected is left out of the next plan
+				if (t != null && batch.length > 0) {
+					metrics.sent();
+					sentTo = t;
+					// set before sending, the response can arrive before send returns
+					sentAt = System.nanoTime();
+					pdu.setRequestID(new Integer32(0));
+					dispatcher.send(pdu, t, this);
+					return;
+				}
+			} catch (IOException e) {
+				LOGGER.error("error:", e);
+			}
+			requestGate.release();
+			batchDone();
+		}
+		
+		public void onResponse(ResponseEvent event) {
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("Received response PDU is: " + event.getResponse());
+				LOGGER.debug("Received response PDU Error is: " + event.getError());
+				LOGGER.debug("Received response PDU Peer Address is: " + event.getPeerAddress());
+			}
+			requestGate.release();
+			metrics.completed(event, sentAt, sentTo);
+			PolledOid[] batch = this.batch;
+			boolean upTime = this.upTime;
+			PDU resp = event.getResponse();
+			long now = System.currentTimeMillis();
+			if (resp == null) {
+				clearAll(batch, now);
+				batchDone();
+				return;
+			}
+			int status = resp.getErrorStatus();
+			int offset = upTime ? 1 : 0;
+			int errIndex = resp.getErrorIndex() - offset;
+			if (status == PDU.tooBig) {
+				splitBatch(batch, now);
+				return;
+			}
+			if (status != PDU.noError && upTime && errIndex == 0) {
+				// rates go without restart detection from now on
+				noUpTime = true;
+				rebuild(batch);
+				metrics.retried();
+				requestGate.submit(this);
+				return;
+			}
+			if (status != PDU.noError && errIndex > 0 && errIndex <= batch.length) {
+				// SNMPv1 agents reject the whole PDU for one bad varbind, so
+				// stop polling that OID and resend the rest of the batch
+				PolledOid failed = batch[errIndex - 1];
+				failed.rejected = true;
+				if (LOGGER.isDebugEnabled()) LOGGER.debug("agent rejected " + failed.oid + ": " + resp.getErrorStatusText());
+				if (failed.clear(now)) failed.node.setValue(null);
+				PolledOid[] rest = new PolledOid[batch.length - 1];
+				System.arraycopy(batch, 0, rest, 0, errIndex - 1);
+				System.arraycopy(batch, errIndex, rest, errIndex - 1, batch.length - errIndex);
+				rebuild(rest);
+				if (rest.length > 0) {
+					metrics.retried();
+					requestGate.submit(this);
+				} else {
+					invalidatePollPlan();
+					batchDone();
+				}
+				return;
+			}
+			if (status != PDU.noError) {
+				// nothing to tell which varbind failed, the response only echoes the request
+				clearAll(batch, now);
+				batchDone();
+				return;
+			}
+			long agentUpTime = -1;
+			if (upTime && resp.size() > 0 && resp.get(0).getVariable().getSyntax() == SMIConstants.SYNTAX_TIMETICKS) {
+				agentUpTime = resp.get(0).getVariable().toLong();
+			}
+			int count = Math.min(resp.size() - offset, batch.length);
+			for (int i = 0; i < count; i++) {
+				PolledOid polled = batch[i];
+				Variable var = resp.get(i + offset).getVariable();
+				if (polled.rate && PolledOid.isCounter(var.getSyntax())) {
+					double rate = polled.rate(var, agentUpTime, now);
+					if (!Double.isNaN(rate) && polled.acceptRate(rate, now)) setRateValue(polled.node, var.getSyntax(), rate);
+				} else if (polled.accept(var, now)) {
+					setOidValue(polled.node, var);
+				}
+			}
+			batchDone();
+		}
+		
+		/**
+		 * Answers tooBig by lowering the agent's batch size to half of this
+		 * batch, for the next poll plan, and resending both halves now. A
+		 * single OID that is too big is cleared.
+		 */
+		private void splitBatch(PolledOid[] batch, long now) {
+			if (batch.length <= 1) {
+				clearAll(batch, now);
+				batchDone();
+				return;
+			}
+			int half = (batch.length + 1) / 2;
+			if (half < batchSize) batchSize = half;
+			invalidatePollPlan();
+			PolledOid[] first = Arrays.copyOfRange(batch, 0, half);
+			PolledOid[] second = Arrays.copyOfRange(batch, half, batch.length);
+			batchesPending.incrementAndGet();
+			rebuild(first);
+			// both halves are resent
+			metrics.retried();
+			metrics.retried();
+			requestGate.submit(this);
+			requestGate.submit(new PollListener(second));
+		}
+		
+		private void clearAll(PolledOid[] batch, long now) {
+			for (PolledOid polled: batch) {
+				if (polled.clear(now)) polled.node.setValue(null);
+			}
+		}
+	}
+	
     public static OctetString createOctetString(String s) {
         OctetString octetString;
 
@@ -0,0 +1,498 @@
+package snmp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.NodeBuilder;
+import org.dsa.iot.dslink.node.Permission;
+import org.dsa.iot.dslink.node.actions.Action;
+import org.dsa.iot.dslink.node.actions.ActionResult;
+import org.dsa.iot.dslink.node.actions.EditorType;
+import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.GenericAddress;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.UdpAddress;
+
+import snmp.SnmpLink.SnmpVersion;
+
+/**
+ * The importAgents and exportAgents actions of the link. Agents are
+ * exchanged as CSV with a header row, or as a JSON array of objects, using
+ * the addAgent parameter names as fields plus "OIDs", a list of name=oid
+ * pairs separated by semicolons (or a JSON object of them). Imported agents
+ * are all validated first, then created in batches, and their connections
+ * are set up on a background thread, with progress shown on the link's
+ * "Import Status" node.
+ */
+class AgentTransfer {
+	static private final Logger LOGGER;
+	static {
+		LOGGER = LoggerFactory.getLogger(AgentTransfer.class);
+	}
+
+	static final String CSV = "csv";
+	static final String JSON = "json";
+	private static final int BATCH_SIZE = 100;
+	private static final int MAX_REPORTED_ERRORS = 50;
+	private static final String[] FIELDS = {"Name", "IP", "Port", "Polling Interval", "SNMP Version",
+			"Community String", "Security Name", "Auth Protocol", "Auth Passphrase", "Priv Protocol",
+			"Priv Passphrase", "Engine ID", "Context Engine", "Context Name", "Retries", "Timeout",
+			"Max OIDs per Request", "Max Requests in Flight", "Trap History Size", "Counter Rate", "OIDs"};
+	private static final String[] V3_FIELDS = {"Security Name", "Auth Protocol", "Auth Passphrase",
+			"Priv Protocol", "Priv Passphrase", "Engine ID", "Context Engine", "Context Name"};
+	// the values the addAgent enums offer
+	private static final List<String> AUTH_PROTOCOLS = Arrays.asList("NONE", "MD5", "SHA");
+	private static final List<String> PRIV_PROTOCOLS = Arrays.asList("NONE", "DES", "AES128", "AES192", "AES256");
+	private static final String[] NUMBER_FIELDS = {"Polling Interval", "Retries", "Timeout",
+			"Max OIDs per Request", "Max Requests in Flight", "Trap History Size"};
+
+	private final SnmpLink link;
+	private final Node statusNode;
+	private final ExecutorService setupExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("snmp-agent-setup-"));
+	private final AtomicInteger setupTotal = new AtomicInteger();
+	private final AtomicInteger setupDone = new AtomicInteger();
+
+	AgentTransfer(SnmpLink link) {
+		this.link = link;
+		statusNode = link.node.createChild("Import Status").setValueType(ValueType.STRING).setValue(new Value("")).build();
+		statusNode.setSerializable(false);
+
+		Action act = new Action(Permission.READ, new ImportHandler());
+		act.addParameter(new Parameter("Format", ValueType.makeEnum(CSV, JSON), new Value(CSV)));
+		Parameter param = new Parameter("Data", ValueType.STRING);
+		param.setEditorType(EditorType.TEXT_AREA);
+		act.addParameter(param);
+		param = new Parameter("OIDs", ValueType.STRING, new Value(""));
+		param.setEditorType(EditorType.TEXT_AREA);
+		act.addParameter(param);
+		act.addResult(new Parameter("Imported", ValueType.NUMBER));
+		act.addResult(new Parameter("Failed", ValueType.NUMBER));
+		act.addResult(new Parameter("Errors", ValueType.STRING));
+		link.node.createChild("importAgents").setAction(act).build().setSerializable(false);
+
+		act = new Action(Permission.READ, new ExportHandler());
+		act.addParameter(new Parameter("Format", ValueType.makeEnum(CSV, JSON), new Value(CSV)));
+		act.addResult(new Parameter("Data", ValueType.STRING));
+		link.node.createChild("exportAgents").setAction(act).build().setSerializable(false);
+	}
+
+	private class ImportHandler implements Handler<ActionResult> {
+		public void handle(ActionResult event) {
+			Value formatVal = event.getParameter("Format");
+			Value dataVal = event.getParameter("Data");
+			Value oidsVal = event.getParameter("OIDs");
+			String format = (formatVal != null) ? formatVal.getString() : CSV;
+			String data = (dataVal != null && dataVal.getString() != null) ? dataVal.getString() : "";
+			List<String> errors = new ArrayList<String>();
+			List<Map<String, String>> rows;
+			try {
+				rows = JSON.equals(format) ? parseJson(data) : parseCsv(data);
+			} catch (RuntimeException e) {
+				LOGGER.debug("", e);
+				event.getTable().addRow(Row.make(new Value(0), new Value(0), new Value("could not parse data: " + e.getMessage())));
+				return;
+			}
+			Map<String, String> template = new LinkedHashMap<String, String>();
+			if (oidsVal != null && oidsVal.getString() != null) {
+				String error = parseOids(oidsVal.getString(), template);
+				if (error != null) {
+					event.getTable().addRow(Row.make(new Value(0), new Value(0), new Value("OIDs: " + error)));
+					return;
+				}
+			}
+
+			List<Map<String, String>> valid = new ArrayList<Map<String, String>>();
+			Map<String, Map<String, String>> oids = new LinkedHashMap<String, Map<String, String>>();
+			for (int i = 0; i < rows.size(); i++) {
+				Map<String, String> row = rows.get(i);
+				Map<String, String> rowOids = new LinkedHashMap<String, String>(template);
+				String error = validate(row, oids.keySet(), rowOids);
+				if (error != null) {
+					errors.add("agent " + (i + 1) + ": " + error);
+				} else {
+					valid.add(row);
+					oids.put(row.get("Name"), rowOids);
+				}
+			}
+
+			List<AgentNode> created = new ArrayList<AgentNode>(valid.size());
+			for (int from = 0; from < valid.size(); from += BATCH_SIZE) {
+				int to = Math.min(valid.size(), from + BATCH_SIZE);
+				for (Map<String, String> row: valid.subList(from, to)) {
+					AgentNode agent = createAgent(row);
+					for (Map.Entry<String, String> oid: oids.get(row.get("Name")).entrySet()) {
+						agent.addOid(oid.getKey(), oid.getValue());
+					}
+					created.add(agent);
+				}
+				statusNode.setValue(new Value("created " + to + " of " + valid.size() + " agents"));
+			}
+			setupInBackground(created);
+
+			StringBuilder report = new StringBuilder();
+			for (int i = 0; i < errors.size() && i < MAX_REPORTED_ERRORS; i++) {
+				report.append(errors.get(i)).append('\n');
+			}
+			if (errors.size() > MAX_REPORTED_ERRORS) {
+				report.append("and ").append(errors.size() - MAX_REPORTED_ERRORS).append(" more\n");
+			}
+			LOGGER.info("imported " + created.size() + " agents, " + errors.size() + " failed");
+			event.getTable().addRow(Row.make(new Value(created.size()), new Value(errors.size()), new Value(report.toString())));
+		}
+	}
+
+	/**
+	 * Sets up the connections of new agents one after another, off the
+	 * action thread.
+	 */
+	private void setupInBackground(List<AgentNode> agents) {
+		setupTotal.addAndGet(agents.size());
+		for (final AgentNode agent: agents) {
+			setupExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						agent.setup();
+					} catch (RuntimeException e) {
+						LOGGER.debug("", e);
+					}
+					int done = setupDone.incrementAndGet();
+					int total = setupTotal.get();
+					if (done == total) {
+						statusNode.setValue(new Value("set up " + total + " agents"));
+					} else if (done % 50 == 0) {
+						statusNode.setValue(new Value("setting up agents: " + done + " of " + total));
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns why the row is not a valid new agent, or null. Fills in
+	 * defaults for missing fields and adds the row's OIDs to oids.
+	 */
+	private String validate(Map<String, String> row, Set<String> importedNames, Map<String, String> oids) {
+		String name = trimmed(row.get("Name"));
+		if (name.isEmpty()) return "no Name";
+		if (link.node.getChild(name) != null || importedNames.contains(name)) return "'" + name + "' already exists";
+		row.put("Name", name);
+		putDefault(row, "Port", "161");
+		putDefault(row, "Polling Interval", "5");
+		putDefault(row, "SNMP Version", SnmpVersion.v2c.toString());
+		putDefault(row, "Community String", "public");
+		putDefault(row, "Auth Protocol", "NONE");
+		putDefault(row, "Priv Protocol", "NONE");
+		putDefault(row, "Retries", "2");
+		putDefault(row, "Timeout", "1500");
+		putDefault(row, "Max OIDs per Request", Integer.toString(AgentNode.DEFAULT_MAX_OIDS_PER_REQUEST));
+		putDefault(row, "Max Requests in Flight", Integer.toString(AgentNode.DEFAULT_MAX_IN_FLIGHT));
+		putDefault(row, "Trap History Size", Integer.toString(TrapBuffer.DEFAULT_CAPACITY));
+		putDefault(row, "Counter Rate", "false");
+		String ip = trimmed(row.get("IP"));
+		if (ip.isEmpty()) return "no IP";
+		Address address = GenericAddress.parse("udp:" + ip + "/" + trimmed(row.get("Port")));
+		if (!(address instanceof UdpAddress)) return "bad IP or Port";
+		SnmpVersion version = SnmpVersion.parse(trimmed(row.get("SNMP Version")));
+		if (version == null) return "bad SNMP Version";
+		// the protocols are only kept for v3 agents
+		if (version == SnmpVersion.v3) {
+			// older agents may carry "AES", which setTarget reads as AES128
+			if (trimmed(row.get("Priv Protocol")).equalsIgnoreCase("AES")) row.put("Priv Protocol", "AES128");
+			String error = checkEnum(row, "Auth Protocol", AUTH_PROTOCOLS);
+			if (error == null) error = checkEnum(row, "Priv Protocol", PRIV_PROTOCOLS);
+			if (error != null) return error;
+		}
+		for (String field: NUMBER_FIELDS) {
+			try {
+				if (Double.parseDouble(trimmed(row.get(field))) < 0) return "negative " + field;
+			} catch (NumberFormatException e) {
+				return "bad " + field;
+			}
+		}
+		String rates = trimmed(row.get("Counter Rate"));
+		if (!rates.equalsIgnoreCase("true") && !rates.equalsIgnoreCase("false")) return "bad Counter Rate";
+		String error = parseOids(row.get("OIDs"), oids);
+		if (error != null) return error;
+		return null;
+	}
+
+	private AgentNode createAgent(Map<String, String> row) {
+		SnmpVersion version = SnmpVersion.parse(trimmed(row.get("SNMP Version")));
+		NodeBuilder builder = link.node.createChild(row.get("Name"));
+		builder.setAttribute("Polling Interval", new Value((long) (1000 * Double.parseDouble(trimmed(row.get("Polling Interval"))))));
+		builder.setAttribute("IP", new Value(trimmed(row.get("IP"))));
+		builder.setAttribute("Port", new Value(trimmed(row.get("Port"))));
+		builder.setAttribute("SNMP Version", new Value(version.toString()));
+		// like addAgent, only the fields of the agent's SNMP version are kept
+		builder.setAttribute("Community String", new Value((version != SnmpVersion.v3) ? nonNull(row.get("Community String")) : "N/A"));
+		for (String field: V3_FIELDS) {
+			builder.setAttribute(field, new Value((version == SnmpVersion.v3) ? nonNull(row.get(field)) : "N/A"));
+		}
+		builder.setAttribute("Retries", new Value((int) Double.parseDouble(trimmed(row.get("Retries")))));
+		builder.setAttribute("Timeout", new Value((long) Double.parseDouble(trimmed(row.get("Timeout")))));
+		builder.setAttribute("Max OIDs per Request", new Value(Math.max(1, (int) Double.parseDouble(trimmed(row.get("Max OIDs per Request"))))));
+		builder.setAttribute("Max Requests in Flight", new Value(Math.max(1, (int) Double.parseDouble(trimmed(row.get("Max Requests in Flight"))))));
+		builder.setAttribute("Trap History Size", new Value(Math.max(1, (int) Double.parseDouble(trimmed(row.get("Trap History Size"))))));
+		builder.setAttribute("Counter Rate", new Value(Boolean.parseBoolean(trimmed(row.get("Counter Rate")).toLowerCase())));
+		return new AgentNode(link, builder.build(), false);
+	}
+
+	private class ExportHandler implements Handler<ActionResult> {
+		public void handle(ActionResult event) {
+			Value formatVal = event.getParameter("Format");
+			boolean json = formatVal != null && JSON.equals(formatVal.getString());
+			StringBuilder csv = new StringBuilder();
+			JsonArray array = new JsonArray();
+			if (!json) appendCsvRow(csv, FIELDS);
+			int count = 0;
+			if (link.node.getChildren() != null) {
+				for (Node child: link.node.getChildren().values()) {
+					if (!(child.getMetaData() instanceof AgentNode)) continue;
+					Map<String, String> oids = new LinkedHashMap<String, String>();
+					collectOids(child, oids);
+					if (json) {
+						array.add(exportJson(child, oids));
+					} else {
+						String[] values = new String[FIELDS.length];
+						for (int i = 0; i < FIELDS.length; i++) {
+							values[i] = exportField(child, FIELDS[i], oids);
+						}
+						appendCsvRow(csv, values);
+					}
+					count++;
+				}
+			}
+			LOGGER.info("exported " + count + " agents");
+			event.getTable().addRow(Row.make(new Value(json ? array.toString() : csv.toString())));
+		}
+	}
+
+	private static String exportField(Node agent, String field, Map<String, String> oids) {
+		if (field.equals("Name")) return agent.getName();
+		if (field.equals("OIDs")) {
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, String> oid: oids.entrySet()) {
+				if (sb.length() > 0) sb.append(';');
+				sb.append(oid.getKey()).append('=').append(oid.getValue());
+			}
+			return sb.toString();
+		}
+		Value value = agent.getAttribute(field);
+		if (value == null) return "";
+		if (field.equals("Polling Interval")) {
+			// stored in milliseconds, entered in seconds
+			return Double.toString(value.getNumber().doubleValue() / 1000);
+		}
+		if (value.getNumber() != null) return value.getNumber().toString();
+		if (value.getBool() != null) return value.getBool().toString();
+		return nonNull(value.getString());
+	}
+
+	private static JsonObject exportJson(Node agent, Map<String, String> oids) {
+		JsonObject jo = new JsonObject();
+		for (String field: FIELDS) {
+			if (field.equals("OIDs")) {
+				JsonObject jOids = new JsonObject();
+				for (Map.Entry<String, String> oid: oids.entrySet()) {
+					jOids.put(oid.getKey(), oid.getValue());
+				}
+				jo.put(field, jOids);
+				continue;
+			}
+			Value value = agent.getAttribute(field);
+			if (field.equals("Name")) {
+				jo.put(field, agent.getName());
+			} else if (field.equals("Polling Interval") && value != null) {
+				jo.put(field, value.getNumber().doubleValue() / 1000);
+			} else if (value != null && value.getNumber() != null) {
+				jo.put(field, value.getNumber());
+			} else if (value != null && value.getBool() != null) {
+				jo.put(field, value.getBool());
+			} else if (value != null) {
+				jo.put(field, nonNull(value.getString()));
+			}
+		}
+		return jo;
+	}
+
+	/**
+	 * Collects the added OIDs below an agent, folders flattened, leaving out
+	 * walk results.
+	 */
+	private static void collectOids(Node parent, Map<String, String> oids) {
+		if (parent.getChildren() == null) return;
+		for (Node child: parent.getChildren().values()) {
+			Value restoreType = child.getAttribute("restoreType");
+			if (restoreType != null && "walk".equals(restoreType.getString())) continue;
+			Value oid = child.getAttribute("oid");
+			if (oid != null && !oids.containsKey(child.getName())) {
+				oids.put(child.getName(), oid.getString());
+			} else if (restoreType != null && "folder".equals(restoreType.getString())) {
+				collectOids(child, oids);
+			}
+		}
+	}
+
+	/**
+	 * Parses name=oid pairs, separated by semicolons or line breaks, into
+	 * oids. A pair without a name is named by its OID. Returns an error
+	 * message or null.
+	 */
+	private static String parseOids(String s, Map<String, String> oids) {
+		if (s == null) return null;
+		for (String pair: s.split("[;\\r\\n]+")) {
+			pair = pair.trim();
+			if (pair.isEmpty()) continue;
+			int eq = pair.indexOf('=');
+			String name = (eq >= 0) ? pair.substring(0, eq).trim() : pair;
+			String oid = (eq >= 0) ? pair.substring(eq + 1).trim() : pair;
+			if (oid.startsWith(".")) oid = oid.substring(1);
+			try {
+				if (oid.isEmpty() || new OID(oid).size() == 0) return "bad OID '" + pair + "'";
+			} catch (RuntimeException e) {
+				return "bad OID '" + pair + "'";
+			}
+			oids.put(name.isEmpty() ? oid : name, oid);
+		}
+		return null;
+	}
+
+	private static List<Map<String, String>> parseJson(String data) {
+		List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+		for (Object o: new JsonArray(data)) {
+			if (!(o instanceof JsonObject)) throw new IllegalArgumentException("expected an array of objects");
+			Map<String, String> row = new LinkedHashMap<String, String>();
+			for (Map.Entry<String, Object> entry: (JsonObject) o) {
+				Object value = entry.getValue();
+				if (value instanceof JsonObject) {
+					// OIDs as an object of name: oid
+					StringBuilder sb = new StringBuilder();
+					for (Map.Entry<String, Object> oid: (JsonObject) value) {
+						if (sb.length() > 0) sb.append(';');
+						sb.append(oid.getKey()).append('=').append(oid.getValue());
+					}
+					row.put(entry.getKey(), sb.toString());
+				} else if (value != null) {
+					row.put(entry.getKey(), value.toString());
+				}
+			}
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * Parses CSV with a header row naming the fields. Fields may be quoted
+	 * with double quotes, which are doubled inside quoted fields.
+	 */
+	static List<Map<String, String>> parseCsv(String data) {
+		List<List<String>> records = new ArrayList<List<String>>();
+		List<String> record = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		boolean empty = true;
+		for (int i = 0; i < data.length(); i++) {
+			char c = data.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < data.length() && data.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+				empty = false;
+			} else if (c == ',') {
+				record.add(field.toString());
+				field.setLength(0);
+				empty = false;
+			} else if (c == '\n' || c == '\r') {
+				if (c == '\r' && i + 1 < data.length() && data.charAt(i + 1) == '\n') i++;
+				if (!empty || field.length() > 0) {
+					record.add(field.toString());
+					records.add(record);
+				}
+				record = new ArrayList<String>();
+				field.setLength(0);
+				empty = true;
+			} else {
+				field.append(c);
+				empty = false;
+			}
+		}
+		if (quoted) throw new IllegalArgumentException("unterminated quote");
+		if (!empty || field.length() > 0) {
+			record.add(field.toString());
+			records.add(record);
+		}
+		List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+		if (records.isEmpty()) return rows;
+		List<String> header = records.get(0);
+		for (List<String> values: records.subList(1, records.size())) {
+			Map<String, String> row = new LinkedHashMap<String, String>();
+			for (int i = 0; i < header.size() && i < values.size(); i++) {
+				if (!values.get(i).isEmpty()) row.put(header.get(i).trim(), values.get(i));
+			}
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	private static void appendCsvRow(StringBuilder sb, String[] values) {
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) sb.append(',');
+			String v = nonNull(values[i]);
+			if (v.indexOf(',') >= 0 || v.indexOf('"') >= 0 || v.indexOf('\n') >= 0 || v.indexOf('\r') >= 0
+					|| !v.equals(v.trim())) {
+				sb.append('"').append(v.replace("\"", "\"\"")).append('"');
+			} else {
+				sb.append(v);
+			}
+		}
+		sb.append('\n');
+	}
+
+	/**
+	 * Returns why the field is not one of the allowed values, or null after
+	 * normalizing its case.
+	 */
+	private static String checkEnum(Map<String, String> row, String field, List<String> allowed) {
+		String value = trimmed(row.get(field)).toUpperCase();
+		if (!allowed.contains(value)) return "bad " + field + " '" + trimmed(row.get(field)) + "'";
+		row.put(field, value);
+		return null;
+	}
+
+	private static void putDefault(Map<String, String> row, String field, String value) {
+		if (trimmed(row.get(field)).isEmpty()) row.put(field, value);
+	}
+
+	private static String trimmed(String s) {
+		return (s != null) ? s.trim() : "";
+	}
+
+	private static String nonNull(String s) {
+		return (s != null) ? s : "";
+	}
+
+}
@@ -0,0 +1,24 @@
+package snmp;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates numbered daemon threads for the link's own worker pools.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+	private final String prefix;
+	private final AtomicInteger count = new AtomicInteger();
+
+	DaemonThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, prefix + count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+
+}
@@ -0,0 +1,108 @@
+package snmp;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from primitive long keys to values, so lookups
+ * don't box the key. Not thread safe.
+ */
+class LongMap<V> {
+
+	private long[] keys;
+	private Object[] values;
+	private int size = 0;
+	private int mask;
+
+	LongMap() {
+		this(64);
+	}
+
+	LongMap(int capacity) {
+		int n = 16;
+		while (n < capacity * 2) n <<= 1;
+		keys = new long[n];
+		values = new Object[n];
+		mask = n - 1;
+	}
+
+	int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(long key) {
+		for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) return (V) values[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Maps the key to the value, which must not be null, and returns the
+	 * previous value.
+	 */
+	@SuppressWarnings("unchecked")
+	V put(long key, V value) {
+		int i = slot(key);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V old = (V) values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length) grow();
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	V remove(long key) {
+		int i = slot(key);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) break;
+		}
+		if (values[i] == null) return null;
+		V old = (V) values[i];
+		values[i] = null;
+		size--;
+		// move back the following entries of the probe run that may no longer be reachable
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				values[j] = null;
+				i = j;
+			}
+		}
+		return old;
+	}
+
+	void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new Object[oldValues.length * 2];
+		mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] == null) continue;
+			int j = slot(oldKeys[i]);
+			while (values[j] != null) j = (j + 1) & mask;
+			keys[j] = oldKeys[i];
+			values[j] = oldValues[i];
+		}
+	}
+
+}
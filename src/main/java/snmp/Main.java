@@ -42,8 +42,20 @@ public class Main extends DSLinkHandler {
 
     @Override
     public void stop() {
-        if (snmpLink.mibFuture != null) {
-            snmpLink.mibFuture.cancel(true);
+        if (snmpLink.mibThread != null) {
+            snmpLink.mibThread.stop();
+        }
+        if (snmpLink.pollScheduler != null) {
+            snmpLink.pollScheduler.stop();
+        }
+        if (snmpLink.trapPipeline != null) {
+            snmpLink.trapPipeline.stop();
+        }
+        if (snmpLink.trapJournal != null) {
+            snmpLink.trapJournal.stop();
+        }
+        if (snmpLink.shards != null) {
+            snmpLink.shards.close();
         }
     }
 
@@ -0,0 +1,246 @@
+package snmp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.percederberg.mibble.Mib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary cache of the symbol names of the MIBs, grouped by module, so that
+ * after a restart names resolve as soon as the cache file is mapped, without
+ * parsing the MIBs. The cache records a hash of the MIB sources (the
+ * standard MIB list and every file in the MIB store) and is ignored once
+ * they no longer match. Each generation of the cache is a file of its own,
+ * named after that hash, since a mapped file can be neither replaced nor
+ * reliably unmapped while the link runs.
+ */
+class MibCache {
+	static private final Logger LOGGER;
+	static {
+		LOGGER = LoggerFactory.getLogger(MibCache.class);
+	}
+
+	private static final int MAGIC = 0x534e4d43;
+	private static final int VERSION = 2;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final File mibStore;
+
+	MibCache(File file, File mibStore) {
+		this.file = file;
+		this.mibStore = mibStore;
+	}
+
+	/**
+	 * Hashes the names of the standard MIBs and the names and contents of
+	 * the files in the MIB store.
+	 */
+	byte[] fingerprint() {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(Integer.toString(VERSION).getBytes(UTF8));
+			for (String name: Config.STANDARD_MIBS) {
+				md.update(name.getBytes(UTF8));
+				md.update((byte) 0);
+			}
+			File[] files = mibStore.listFiles();
+			if (files != null) {
+				Arrays.sort(files);
+				byte[] buf = new byte[8192];
+				for (File f: files) {
+					md.update(f.getName().getBytes(UTF8));
+					md.update((byte) 0);
+					InputStream in = new FileInputStream(f);
+					try {
+						int n;
+						while ((n = in.read(buf)) > 0) md.update(buf, 0, n);
+					} finally {
+						in.close();
+					}
+				}
+			}
+			return md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			LOGGER.debug("", e);
+		} catch (IOException e) {
+			LOGGER.debug("", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the module directory of the cache, with the symbols left in the
+	 * mapped file, or null if there is no cache or it was built from
+	 * different MIBs.
+	 */
+	MibModules load(byte[] fingerprint) {
+		if (fingerprint == null) return null;
+		File current = generation(fingerprint);
+		if (!current.exists()) return null;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(current, "r");
+			try {
+				// the mapping stays valid after the file is closed
+				MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				if (buf.getInt() != MAGIC || buf.getInt() != VERSION) return null;
+				byte[] stored = new byte[buf.get() & 0xFF];
+				buf.get(stored);
+				if (!Arrays.equals(stored, fingerprint)) return null;
+				return new MibModules(buf.slice());
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			LOGGER.debug("error reading MIB cache", e);
+		} catch (BufferUnderflowException e) {
+			LOGGER.debug("MIB cache is truncated", e);
+		} catch (IllegalArgumentException e) {
+			LOGGER.debug("MIB cache is corrupt", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Encodes the symbols of the given MIBs in the layout MibModules reads:
+	 * per module its name, symbol count, subtree roots and symbols.
+	 */
+	static byte[] encode(Mib[] mibs) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(mibs.length);
+		ByteArrayOutputStream section = new ByteArrayOutputStream();
+		final DataOutputStream sectionOut = new DataOutputStream(section);
+		for (Mib mib: mibs) {
+			MibIndex index = new MibIndex(mib);
+			final List<int[]> oids = new ArrayList<int[]>();
+			section.reset();
+			index.forEach(new MibIndex.EntryVisitor() {
+				public void visit(int[] arcs, int length, String name) throws IOException {
+					oids.add(Arrays.copyOf(arcs, length));
+					sectionOut.writeShort(length);
+					for (int i = 0; i < length; i++) sectionOut.writeInt(arcs[i]);
+					byte[] nameBytes = name.getBytes(UTF8);
+					sectionOut.writeShort(nameBytes.length);
+					sectionOut.write(nameBytes);
+				}
+			});
+			sectionOut.flush();
+			List<int[]> roots = roots(oids);
+			byte[] name = mib.getName().getBytes(UTF8);
+			out.writeShort(name.length);
+			out.write(name);
+			out.writeInt(index.size());
+			out.writeInt(roots.size());
+			for (int[] root: roots) {
+				out.writeShort(root.length);
+				for (int arc: root) out.writeInt(arc);
+			}
+			out.writeInt(section.size());
+			section.writeTo(out);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reduces OIDs in trie order (parents before children) to the ones that
+	 * are not under another one.
+	 */
+	private static List<int[]> roots(List<int[]> oids) {
+		List<int[]> roots = new ArrayList<int[]>();
+		int[] last = null;
+		for (int[] oid: oids) {
+			if (last != null && isPrefix(last, oid)) continue;
+			roots.add(oid);
+			last = oid;
+		}
+		return roots;
+	}
+
+	private static boolean isPrefix(int[] prefix, int[] oid) {
+		if (prefix.length > oid.length) return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (prefix[i] != oid[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The cache file for the given fingerprint.
+	 */
+	private File generation(byte[] fingerprint) {
+		StringBuilder name = new StringBuilder(file.getName()).append('.');
+		for (byte b: fingerprint) {
+			name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return new File(file.getAbsoluteFile().getParentFile(), name.toString());
+	}
+
+	/**
+	 * Writes an encoded module section to a new cache generation, moved into
+	 * place only once it is complete, and deletes the older generations.
+	 */
+	void save(byte[] modules, byte[] fingerprint) {
+		if (fingerprint == null) return;
+		File current = generation(fingerprint);
+		File tmp = new File(current.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeByte(fingerprint.length);
+				out.write(fingerprint);
+				out.write(modules);
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), current.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			LOGGER.debug("error writing MIB cache", e);
+			if (tmp.exists() && !tmp.delete()) LOGGER.debug("error deleting MIB cache temp file");
+			return;
+		}
+		deleteOldGenerations(current);
+	}
+
+	/**
+	 * Deletes the cache files other than the current one. A generation that
+	 * is still mapped cannot be deleted on some platforms; it is left for
+	 * the next save to delete.
+	 */
+	private void deleteOldGenerations(File current) {
+		File[] files = current.getParentFile().listFiles();
+		if (files == null) return;
+		String prefix = file.getName();
+		for (File f: files) {
+			String name = f.getName();
+			if (f.equals(current) || !f.isFile()) continue;
+			if (!name.equals(prefix) && !name.startsWith(prefix + ".")) continue;
+			if (!f.delete()) LOGGER.debug("MIB cache " + name + " still in use, deleting it later");
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+package snmp;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.percederberg.mibble.Mib;
+import net.percederberg.mibble.MibSymbol;
+import net.percederberg.mibble.MibValueSymbol;
+import net.percederberg.mibble.value.ObjectIdentifierValue;
+
+import org.snmp4j.smi.OID;
+
+/**
+ * Prefix trie over the OIDs of the value symbols of one MIB module. Matching
+ * an OID is a single walk down the trie that remembers the deepest named
+ * node. An index is immutable once built; MibModules holds one per loaded
+ * module.
+ */
+class MibIndex {
+
+	private final TrieNode<String> rootNode = new TrieNode<String>();
+	private int size = 0;
+
+	MibIndex() {
+	}
+
+	MibIndex(Mib mib) {
+		for (Object o: mib.getAllSymbols()) {
+			MibValueSymbol mvs = (o instanceof MibValueSymbol) ? (MibValueSymbol) o : null;
+			ObjectIdentifierValue oidValue = getOidFromSymbol(mvs);
+			if (oidValue != null) {
+				insert(new OID(oidValue.toString()).getValue(), mvs.getName());
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of leading arcs matched by the deepest named node on
+	 * the path of the given arcs, 0 if none, and stores its name in name[0].
+	 */
+	int match(int[] arcs, String[] name) {
+		TrieNode<String> current = rootNode;
+		int bestDepth = 0;
+		for (int i = 0; i < arcs.length; i++) {
+			current = current.child(arcs[i]);
+			if (current == null) break;
+			if (current.value != null) {
+				name[0] = current.value;
+				bestDepth = i + 1;
+			}
+		}
+		return bestDepth;
+	}
+
+	void insert(int[] arcs, String name) {
+		TrieNode<String> current = rootNode;
+		for (int arc: arcs) {
+			current = current.getOrAddChild(arc);
+		}
+		// the first symbol to define an OID keeps its name
+		if (current.value == null) {
+			current.value = name;
+			size++;
+		}
+	}
+
+	/**
+	 * Number of named OIDs in the index.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Visits every named OID, parents before children. The arcs array is
+	 * reused between calls; only its first length entries are valid.
+	 */
+	void forEach(EntryVisitor visitor) throws IOException {
+		visit(rootNode, new int[16], 0, visitor);
+	}
+
+	private void visit(TrieNode<String> current, int[] path, int depth, EntryVisitor visitor) throws IOException {
+		if (current.value != null) visitor.visit(path, depth, current.value);
+		if (depth == path.length && current.arcs.length > 0) path = Arrays.copyOf(path, depth * 2);
+		for (int i = 0; i < current.arcs.length; i++) {
+			path[depth] = current.arcs[i];
+			visit(current.child(current.arcs[i]), path, depth + 1, visitor);
+		}
+	}
+
+	interface EntryVisitor {
+		void visit(int[] arcs, int length, String name) throws IOException;
+	}
+
+	static ObjectIdentifierValue getOidFromSymbol(MibSymbol symbol) {
+		if (symbol instanceof MibValueSymbol && ((MibValueSymbol) symbol).getValue() instanceof ObjectIdentifierValue) {
+			return (ObjectIdentifierValue) ((MibValueSymbol) symbol).getValue();
+		}
+		return null;
+	}
+
+	/**
+	 * Trie node keyed by OID arc, with its children kept in arrays sorted by
+	 * arc. Also used by MibModules for its subtree roots.
+	 */
+	static class TrieNode<V> {
+		private static final int[] NO_ARCS = new int[0];
+		private static final TrieNode<?>[] NO_CHILDREN = new TrieNode<?>[0];
+
+		V value;
+		private int[] arcs = NO_ARCS;
+		private TrieNode<?>[] children = NO_CHILDREN;
+
+		@SuppressWarnings("unchecked")
+		TrieNode<V> child(int arc) {
+			int i = Arrays.binarySearch(arcs, arc);
+			return (i >= 0) ? (TrieNode<V>) children[i] : null;
+		}
+
+		@SuppressWarnings("unchecked")
+		TrieNode<V> getOrAddChild(int arc) {
+			int i = Arrays.binarySearch(arcs, arc);
+			if (i >= 0) return (TrieNode<V>) children[i];
+			int pos = -(i + 1);
+			int[] newArcs = new int[arcs.length + 1];
+			TrieNode<?>[] newChildren = new TrieNode<?>[children.length + 1];
+			System.arraycopy(arcs, 0, newArcs, 0, pos);
+			System.arraycopy(children, 0, newChildren, 0, pos);
+			System.arraycopy(arcs, pos, newArcs, pos + 1, arcs.length - pos);
+			System.arraycopy(children, pos, newChildren, pos + 1, children.length - pos);
+			TrieNode<V> child = new TrieNode<V>();
+			newArcs[pos] = arc;
+			newChildren[pos] = child;
+			arcs = newArcs;
+			children = newChildren;
+			return child;
+		}
+	}
+
+}
@@ -0,0 +1,199 @@
+package snmp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.snmp4j.smi.OID;
+
+/**
+ * Resolves OIDs to names one MIB module at a time. Only a small directory is
+ * kept in memory: the module names and the root OIDs of the subtrees each
+ * module defines symbols in. A module's symbols are read from the MIB cache
+ * when an OID under one of its subtrees is first resolved. Loaded modules
+ * are evicted least recently used first once more than the limit are
+ * loaded. A bounded cache of recent results sits in front of all this.
+ * Resolving takes no lock unless a module has to be loaded, so trap decoder
+ * threads don't wait on each other.
+ */
+class MibModules {
+
+	static final int DEFAULT_MAX_LOADED = 16;
+	private static final int CACHE_SIZE = 10000;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer data;
+	private final int[] offsets;
+	private final int[] counts;
+	// root OIDs of the subtrees -> ids of the modules with symbols under them, ascending
+	private final MibIndex.TrieNode<int[]> roots = new MibIndex.TrieNode<int[]>();
+	// loaded modules by id, null if not loaded; loading and evicting lock the array
+	private final AtomicReferenceArray<MibIndex> loaded;
+	private final long[] lastUsed;
+	private final AtomicLong useClock = new AtomicLong();
+	private int loadedCount = 0;
+	private volatile int maxLoaded = 0;
+	// two generations approximate an LRU: hits in the old one move to the
+	// current one, and a full current generation replaces the old one
+	private volatile ConcurrentHashMap<OID, String> cache = new ConcurrentHashMap<OID, String>();
+	private volatile ConcurrentHashMap<OID, String> oldCache = new ConcurrentHashMap<OID, String>();
+
+	/**
+	 * Reads the module directory from the module section of a MIB cache (see
+	 * MibCache), leaving the symbols where they are.
+	 */
+	MibModules(ByteBuffer data) {
+		this.data = data;
+		int moduleCount = data.getInt();
+		offsets = new int[moduleCount];
+		counts = new int[moduleCount];
+		loaded = new AtomicReferenceArray<MibIndex>(moduleCount);
+		lastUsed = new long[moduleCount];
+		for (int m = 0; m < moduleCount; m++) {
+			// skip the module name
+			data.position(data.position() + (data.getShort() & 0xFFFF));
+			counts[m] = data.getInt();
+			int rootCount = data.getInt();
+			for (int r = 0; r < rootCount; r++) {
+				int[] arcs = new int[data.getShort() & 0xFFFF];
+				for (int j = 0; j < arcs.length; j++) arcs[j] = data.getInt();
+				addRoot(arcs, m);
+			}
+			int length = data.getInt();
+			offsets[m] = data.position();
+			data.position(data.position() + length);
+		}
+	}
+
+	private void addRoot(int[] arcs, int module) {
+		MibIndex.TrieNode<int[]> root = roots;
+		for (int arc: arcs) {
+			root = root.getOrAddChild(arc);
+		}
+		int[] modules = root.value;
+		if (modules == null) {
+			modules = new int[] {module};
+		} else {
+			int[] grown = new int[modules.length + 1];
+			System.arraycopy(modules, 0, grown, 0, modules.length);
+			grown[modules.length] = module;
+			modules = grown;
+		}
+		root.value = modules;
+	}
+
+	/**
+	 * Sets how many modules stay loaded; 0 keeps every module once loaded.
+	 */
+	void setMaxLoaded(int max) {
+		maxLoaded = Math.max(0, max);
+		synchronized (loaded) {
+			evict();
+		}
+	}
+
+	/**
+	 * Returns the OID with its longest known prefix replaced by the symbol
+	 * name, e.g. "ifDescr.3", or the dotted OID if no prefix is known.
+	 */
+	String resolve(OID oid) {
+		ConcurrentHashMap<OID, String> current = cache;
+		String resolved = current.get(oid);
+		if (resolved != null) return resolved;
+		resolved = oldCache.get(oid);
+		if (resolved == null) resolved = lookup(oid);
+		current.put(oid, resolved);
+		if (current.size() > CACHE_SIZE / 2) rotateCache(current);
+		return resolved;
+	}
+
+	private synchronized void rotateCache(ConcurrentHashMap<OID, String> full) {
+		// another thread rotated it already
+		if (cache != full) return;
+		oldCache = full;
+		cache = new ConcurrentHashMap<OID, String>();
+	}
+
+	private String lookup(OID oid) {
+		int[] arcs = oid.getValue();
+		String bestName = null;
+		int bestDepth = 0;
+		int bestModule = Integer.MAX_VALUE;
+		String[] name = new String[1];
+		MibIndex.TrieNode<int[]> root = roots;
+		for (int len = 1; len <= arcs.length; len++) {
+			root = root.child(arcs[len - 1]);
+			if (root == null) break;
+			int[] modules = root.value;
+			if (modules == null) continue;
+			for (int m: modules) {
+				int depth = module(m).match(arcs, name);
+				// the module loaded first keeps an OID both define, as with a single index
+				if (depth > bestDepth || (depth > 0 && depth == bestDepth && m < bestModule)) {
+					bestName = name[0];
+					bestDepth = depth;
+					bestModule = m;
+				}
+			}
+		}
+		if (bestName == null) return oid.toDottedString();
+		StringBuilder sb = new StringBuilder(bestName);
+		for (int i = bestDepth; i < arcs.length; i++) {
+			sb.append('.').append(arcs[i] & 0xFFFFFFFFL);
+		}
+		return sb.toString();
+	}
+
+	private MibIndex module(int m) {
+		// racy, it only orders eviction
+		lastUsed[m] = useClock.incrementAndGet();
+		MibIndex index = loaded.get(m);
+		if (index != null) return index;
+		synchronized (loaded) {
+			index = loaded.get(m);
+			if (index == null) {
+				index = read(m);
+				loaded.set(m, index);
+				loadedCount++;
+				evict();
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Unloads the least recently used modules while more than maxLoaded are
+	 * loaded. Lookups still using an unloaded index finish with it.
+	 */
+	private void evict() {
+		int max = maxLoaded;
+		if (max <= 0) return;
+		while (loadedCount > max) {
+			int eldest = -1;
+			for (int m = 0; m < lastUsed.length; m++) {
+				if (loaded.get(m) != null && (eldest < 0 || lastUsed[m] < lastUsed[eldest])) eldest = m;
+			}
+			loaded.set(eldest, null);
+			loadedCount--;
+		}
+	}
+
+	private MibIndex read(int m) {
+		ByteBuffer buf = data.duplicate();
+		buf.position(offsets[m]);
+		MibIndex index = new MibIndex();
+		byte[] nameBuf = new byte[256];
+		for (int i = 0; i < counts[m]; i++) {
+			int[] arcs = new int[buf.getShort() & 0xFFFF];
+			for (int j = 0; j < arcs.length; j++) arcs[j] = buf.getInt();
+			int len = buf.getShort() & 0xFFFF;
+			if (len > nameBuf.length) nameBuf = new byte[len];
+			buf.get(nameBuf, 0, len);
+			index.insert(arcs, new String(nameBuf, 0, len, UTF8));
+		}
+		return index;
+	}
+
+}
@@ -0,0 +1,273 @@
+package snmp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.TransportStateReference;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.UdpTransportMapping;
+
+/**
+ * UDP transport on a non-blocking DatagramChannel. Each selector wakeup
+ * drains every datagram that is ready into pooled buffers, and the batches
+ * are decoded on a small pool of threads, so the socket is emptied quickly
+ * during trap storms and polling bursts. With no decoder threads, datagrams
+ * are decoded on the receive thread. The receive buffers are allocated up to
+ * a fixed number and reused; while all of them are in use, datagrams are
+ * left in the socket buffer rather than read into new ones.
+ */
+class NioUdpTransportMapping extends UdpTransportMapping {
+	static private final Logger LOGGER;
+	static {
+		LOGGER = LoggerFactory.getLogger(NioUdpTransportMapping.class);
+	}
+
+	private static final int BATCH_SIZE = 64;
+	// batches waiting for a decoder
+	private static final int QUEUE_SIZE = 4;
+
+	private final DatagramChannel channel;
+	private final int decoderThreads;
+	// enough buffers for the queued batches, one per decoder and the one being read
+	private final int poolSize;
+	private final BlockingQueue<ByteBuffer> pool;
+	// touched by the receive thread only
+	private int allocated = 0;
+	private Selector selector;
+	private ThreadPoolExecutor decoders;
+	private volatile Thread receiver;
+
+	/**
+	 * @param bindAddress local address, or null for any port
+	 * @param decoderThreads threads decoding received datagrams, 0 to decode on the receive thread
+	 */
+	NioUdpTransportMapping(UdpAddress bindAddress, int decoderThreads) throws IOException {
+		this(open(bindAddress), decoderThreads);
+	}
+
+	private NioUdpTransportMapping(DatagramChannel channel, int decoderThreads) {
+		super(new UdpAddress(channel.socket().getLocalAddress(), channel.socket().getLocalPort()));
+		this.channel = channel;
+		this.decoderThreads = Math.max(0, decoderThreads);
+		this.poolSize = (this.decoderThreads > 0) ? BATCH_SIZE * (QUEUE_SIZE + this.decoderThreads + 1) : BATCH_SIZE;
+		this.pool = new ArrayBlockingQueue<ByteBuffer>(poolSize);
+	}
+
+	private static DatagramChannel open(UdpAddress bindAddress) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			InetSocketAddress local = (bindAddress != null)
+					? new InetSocketAddress(bindAddress.getInetAddress(), bindAddress.getPort())
+					: new InetSocketAddress(0);
+			channel.socket().bind(local);
+			return channel;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	void setReceiveBufferSize(int size) throws IOException {
+		channel.socket().setReceiveBufferSize(size);
+	}
+
+	@Override
+	public void sendMessage(UdpAddress address, byte[] message, TransportStateReference tmStateReference) throws IOException {
+		InetSocketAddress target = new InetSocketAddress(address.getInetAddress(), address.getPort());
+		// a non-blocking send only fails to go out when the socket buffer is
+		// full; failing the request beats letting it wait for its timeout
+		if (channel.send(ByteBuffer.wrap(message), target) == 0) {
+			throw new IOException("socket send buffer full, message to " + address + " not sent");
+		}
+	}
+
+	@Override
+	public synchronized void listen() throws IOException {
+		if (receiver != null) return;
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+		if (decoderThreads > 0) {
+			// when the decoders fall behind the receive thread decodes too, leaving the rest in the socket buffer
+			decoders = new ThreadPoolExecutor(decoderThreads, decoderThreads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new DaemonThreadFactory("snmp-udp-decode-"),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				receiveLoop();
+			}
+		}, "snmp-udp-" + getListenAddress().getPort());
+		thread.setDaemon(true);
+		receiver = thread;
+		thread.start();
+	}
+
+	@Override
+	public boolean isListening() {
+		return receiver != null;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		Thread thread = receiver;
+		receiver = null;
+		if (selector != null) selector.close();
+		channel.close();
+		if (decoders != null) decoders.shutdown();
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void receiveLoop() {
+		while (receiver == Thread.currentThread()) {
+			try {
+				selector.select();
+				selector.selectedKeys().clear();
+				drain();
+			} catch (ClosedSelectorException e) {
+				return;
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				// e.g. an ICMP port unreachable reported on receive; the socket is still usable
+				if (receiver == Thread.currentThread()) {
+					LOGGER.error("error receiving on " + getListenAddress());
+					LOGGER.debug("error:", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads datagrams until the socket is empty, handing them off in batches.
+	 */
+	private void drain() throws IOException {
+		List<Datagram> batch = new ArrayList<Datagram>(BATCH_SIZE);
+		try {
+			while (true) {
+				ByteBuffer buf = buffer();
+				if (buf == null && !batch.isEmpty()) {
+					// hand off what was read so far, its buffers come back once decoded
+					dispatch(batch);
+					batch = new ArrayList<Datagram>(BATCH_SIZE);
+					continue;
+				}
+				if (buf == null) buf = awaitBuffer();
+				if (buf == null) break;
+				SocketAddress from;
+				try {
+					from = channel.receive(buf);
+				} catch (IOException e) {
+					recycle(buf);
+					throw e;
+				}
+				if (from == null) {
+					recycle(buf);
+					break;
+				}
+				buf.flip();
+				batch.add(new Datagram((InetSocketAddress) from, buf));
+				if (batch.size() >= BATCH_SIZE) {
+					dispatch(batch);
+					batch = new ArrayList<Datagram>(BATCH_SIZE);
+				}
+			}
+		} finally {
+			if (!batch.isEmpty()) dispatch(batch);
+		}
+	}
+
+	/**
+	 * A free receive buffer, allocating one while fewer than poolSize exist,
+	 * or null if all are in use.
+	 */
+	private ByteBuffer buffer() {
+		ByteBuffer buf = pool.poll();
+		if (buf == null && allocated < poolSize) {
+			allocated++;
+			buf = ByteBuffer.allocate(getMaxInboundMessageSize());
+		}
+		return buf;
+	}
+
+	/**
+	 * Waits until a decoder returns a buffer, leaving the datagrams in the
+	 * socket buffer meanwhile. Returns null if the transport was closed.
+	 */
+	private ByteBuffer awaitBuffer() {
+		while (receiver == Thread.currentThread()) {
+			try {
+				ByteBuffer buf = pool.poll(100, TimeUnit.MILLISECONDS);
+				if (buf != null) return buf;
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private void dispatch(final List<Datagram> batch) {
+		if (decoders == null) {
+			process(batch);
+			return;
+		}
+		decoders.execute(new Runnable() {
+			public void run() {
+				process(batch);
+			}
+		});
+	}
+
+	private void process(List<Datagram> batch) {
+		for (Datagram datagram: batch) {
+			UdpAddress from = new UdpAddress(datagram.from.getAddress(), datagram.from.getPort());
+			TransportStateReference stateReference = new TransportStateReference(this, from, null,
+					SecurityLevel.undefined, SecurityLevel.undefined, false, null);
+			try {
+				fireProcessMessage(from, datagram.buf, stateReference);
+			} catch (RuntimeException e) {
+				LOGGER.error("error processing message from " + from);
+				LOGGER.debug("error:", e);
+			}
+			recycle(datagram.buf);
+		}
+	}
+
+	private void recycle(ByteBuffer buf) {
+		buf.clear();
+		pool.offer(buf);
+	}
+
+	private static class Datagram {
+		final InetSocketAddress from;
+		final ByteBuffer buf;
+
+		Datagram(InetSocketAddress from, ByteBuffer buf) {
+			this.from = from;
+			this.buf = buf;
+		}
+	}
+
+}
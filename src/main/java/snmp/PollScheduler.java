@@ -0,0 +1,216 @@
+package snmp;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timer wheel that triggers agent poll cycles. There is one entry per
+ * polling agent, not per subscribed OID, and scheduling or cancelling an
+ * entry is O(1). Due polls run on a small bounded worker pool of their own,
+ * so they never compete with the DSLink SDK's shared threads. Each agent
+ * polls at a fixed phase within its interval, taken from a hash of its name,
+ * so agents with the same interval don't all poll in the same tick. Poll
+ * starts across the link can be capped per second, in which case due polls
+ * wait their turn in a backlog.
+ */
+class PollScheduler {
+	static private final Logger LOGGER;
+	static {
+		LOGGER = LoggerFactory.getLogger(PollScheduler.class);
+	}
+
+	static final int DEFAULT_POLL_THREADS = 2;
+	private static final long TICK_MILLIS = 50;
+	private static final int WHEEL_SIZE = 512;
+	private static final int QUEUE_SIZE = 1024;
+
+	private final List<Set<Task>> wheel = new ArrayList<Set<Task>>(WHEEL_SIZE);
+	private final ThreadPoolExecutor workers;
+	private final Thread ticker;
+	private long currentTick = 0;
+	private volatile boolean running = true;
+	// poll starts per second, 0 for no limit
+	private volatile double maxStartsPerSecond = 0;
+	private double startTokens = 0;
+	// due polls waiting to start, oldest first; an agent is in it at most once
+	private final Set<Task> backlog = new LinkedHashSet<Task>();
+
+	PollScheduler(int threads) {
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			wheel.add(new HashSet<Task>());
+		}
+		threads = Math.max(1, threads);
+		workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new DaemonThreadFactory("snmp-poll-"));
+		ticker = new Thread(new Runnable() {
+			public void run() {
+				tickLoop();
+			}
+		}, "snmp-poll-wheel");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	/**
+	 * Starts polling the agent every agent.interval milliseconds. The first
+	 * poll happens at the agent's phase within the interval, so within one
+	 * interval from now.
+	 */
+	Task schedule(AgentNode agent) {
+		long intervalTicks = Math.max(1, ticks(agent.interval));
+		Task task = new Task(agent, intervalTicks);
+		long phase = phase(agent.node.getName(), intervalTicks);
+		synchronized (wheel) {
+			long next = currentTick + 1;
+			place(task, next + ((phase - next % intervalTicks) + intervalTicks) % intervalTicks);
+		}
+		return task;
+	}
+	
+	/**
+	 * Limits how many polls start per second across all agents, 0 for no
+	 * limit.
+	 */
+	void setMaxStartsPerSecond(double max) {
+		maxStartsPerSecond = Math.max(0, max);
+	}
+	
+	/**
+	 * The tick, modulo the interval, at which the agent with the given name
+	 * polls.
+	 */
+	private static long phase(String name, long intervalTicks) {
+		int h = name.hashCode() * 0x9E3779B9;
+		h ^= h >>> 16;
+		return (h & 0x7FFFFFFFL) % intervalTicks;
+	}
+
+	void setThreads(int threads) {
+		threads = Math.max(1, threads);
+		if (threads > workers.getMaximumPoolSize()) {
+			workers.setMaximumPoolSize(threads);
+			workers.setCorePoolSize(threads);
+		} else {
+			workers.setCorePoolSize(threads);
+			workers.setMaximumPoolSize(threads);
+		}
+	}
+
+	void stop() {
+		running = false;
+		ticker.interrupt();
+		workers.shutdownNow();
+	}
+
+	private static long ticks(long millis) {
+		return (millis + TICK_MILLIS - 1) / TICK_MILLIS;
+	}
+
+	private void place(Task task, long deadline) {
+		task.deadline = deadline;
+		task.bucket = wheel.get((int) (deadline % WHEEL_SIZE));
+		task.bucket.add(task);
+	}
+
+	private void tickLoop() {
+		long start = System.currentTimeMillis();
+		while (running) {
+			long sleep = start + (currentTick + 1) * TICK_MILLIS - System.currentTimeMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					if (!running) return;
+				}
+			}
+			List<Task> due = new ArrayList<Task>();
+			List<Task> starting = new ArrayList<Task>();
+			synchronized (wheel) {
+				currentTick++;
+				Set<Task> bucket = wheel.get((int) (currentTick % WHEEL_SIZE));
+				for (Task task: bucket) {
+					if (task.deadline <= currentTick) due.add(task);
+				}
+				for (Task task: due) {
+					bucket.remove(task);
+					place(task, currentTick + task.intervalTicks);
+					// an agent still waiting from its last deadline keeps its place
+					backlog.add(task);
+				}
+				takeStarts(starting);
+			}
+			for (Task task: starting) {
+				try {
+					workers.execute(task);
+				} catch (RejectedExecutionException e) {
+					LOGGER.debug("poll queue full, skipping poll of " + task.agent.node.getName());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves the polls allowed to start this tick from the backlog to the
+	 * given list. Unused allowance carries over for at most one tick.
+	 */
+	private void takeStarts(List<Task> starting) {
+		double max = maxStartsPerSecond;
+		if (max <= 0) {
+			starting.addAll(backlog);
+			backlog.clear();
+			startTokens = 0;
+			return;
+		}
+		double perTick = max * TICK_MILLIS / 1000;
+		startTokens = Math.min(startTokens + perTick, Math.max(1, perTick));
+		Iterator<Task> it = backlog.iterator();
+		while (startTokens >= 1 && it.hasNext()) {
+			starting.add(it.next());
+			it.remove();
+			startTokens--;
+		}
+	}
+
+	/**
+	 * Wheel entry for one polling agent.
+	 */
+	class Task implements Runnable {
+		private final AgentNode agent;
+		private final long intervalTicks;
+		private long deadline;
+		private Set<Task> bucket;
+
+		private Task(AgentNode agent, long intervalTicks) {
+			this.agent = agent;
+			this.intervalTicks = intervalTicks;
+		}
+
+		public void run() {
+			try {
+				agent.poll();
+			} catch (RuntimeException e) {
+				LOGGER.debug("error:", e);
+			}
+		}
+
+		void cancel() {
+			synchronized (wheel) {
+				if (bucket != null) bucket.remove(this);
+				bucket = null;
+				backlog.remove(this);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+package snmp;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.SMIConstants;
+import org.snmp4j.smi.Variable;
+
+/**
+ * Poll state of one subscribed OID node: its parsed OID, its publishing
+ * settings, the last value published and, in rate mode, the last counter
+ * sample. A polled value is only published when it differs from the last
+ * one, for numbers by more than the deadband, or when nothing was published
+ * for the heartbeat time.
+ */
+class PolledOid {
+
+	static final String ABSOLUTE = "absolute";
+	static final String PERCENT = "percent";
+	static final String MODE_AGENT = "agent default";
+	static final String MODE_RAW = "raw";
+	static final String MODE_RATE = "rate";
+
+	final Node node;
+	final OID oid;
+	// publish counters as per second rates
+	final boolean rate;
+	private final double deadband;
+	private final boolean percent;
+	private final long heartbeat;
+	// the agent rejected the OID, it is not polled until subscribed again
+	volatile boolean rejected = false;
+	private boolean published = false;
+	// the last published value is the cleared value of a failed poll
+	private boolean cleared = false;
+	private Variable last;
+	private double lastRate = Double.NaN;
+	private long lastTime;
+	// last counter sample, with the agent's sysUpTime or -1 if unknown
+	private boolean sampled = false;
+	private int sampleSyntax;
+	private long sampleValue;
+	private long sampleTime;
+	private long sampleUpTime;
+
+	PolledOid(Node node, OID oid, boolean agentRate) {
+		this.node = node;
+		this.oid = oid;
+		Value db = node.getAttribute("Deadband");
+		Value mode = node.getAttribute("Deadband Mode");
+		Value hb = node.getAttribute("Heartbeat");
+		Value counterMode = node.getAttribute("Counter Mode");
+		deadband = (db != null && db.getNumber() != null) ? Math.max(0, db.getNumber().doubleValue()) : 0;
+		percent = mode != null && PERCENT.equals(mode.getString());
+		heartbeat = (hb != null && hb.getNumber() != null) ? Math.max(0, (long) (hb.getNumber().doubleValue() * 1000)) : 0;
+		if (counterMode == null || MODE_AGENT.equals(counterMode.getString())) {
+			rate = agentRate;
+		} else {
+			rate = MODE_RATE.equals(counterMode.getString());
+		}
+	}
+
+	/**
+	 * Returns whether the polled value should be published, and if so
+	 * records it as the last published value.
+	 */
+	synchronized boolean accept(Variable var, long now) {
+		if (published && last != null && !heartbeatDue(now) && var.getSyntax() == last.getSyntax()) {
+			if (deadband > 0 && hasDeadband(var.getSyntax())) {
+				if (withinDeadband(var.toLong(), last.toLong())) return false;
+			} else if (var.equals(last)) {
+				return false;
+			}
+		}
+		record(var, Double.NaN, false, now);
+		return true;
+	}
+
+	/**
+	 * Same as accept for a computed counter rate.
+	 */
+	synchronized boolean acceptRate(double value, long now) {
+		if (published && !Double.isNaN(lastRate) && !heartbeatDue(now)
+				&& (value == lastRate || (deadband > 0 && withinDeadband(value, lastRate)))) {
+			return false;
+		}
+		record(null, value, false, now);
+		return true;
+	}
+
+	/**
+	 * Returns whether the cleared value of a failed poll should be
+	 * published, which is once per failure.
+	 */
+	synchronized boolean clear(long now) {
+		if (published && cleared) return false;
+		record(null, Double.NaN, true, now);
+		return true;
+	}
+
+	private void record(Variable var, double value, boolean clear, long now) {
+		published = true;
+		cleared = clear;
+		last = var;
+		lastRate = value;
+		lastTime = now;
+	}
+
+	/**
+	 * Takes a counter sample and returns the per second rate since the
+	 * previous one, or NaN if there is none or the agent restarted since,
+	 * as seen by a lower sysUpTime. Counter32 wraps at 2^32; Counter64
+	 * values are unsigned and wrap at 2^64.
+	 */
+	synchronized double rate(Variable var, long upTime, long now) {
+		int syntax = var.getSyntax();
+		long value = var.toLong();
+		double result = Double.NaN;
+		boolean restarted = upTime >= 0 && sampleUpTime >= 0 && upTime < sampleUpTime;
+		if (sampled && syntax == sampleSyntax && now > sampleTime && !restarted) {
+			long delta = value - sampleValue;
+			if (syntax == SMIConstants.SYNTAX_COUNTER32) delta &= 0xFFFFFFFFL;
+			result = unsigned(delta) * 1000 / (now - sampleTime);
+		}
+		sampled = true;
+		sampleSyntax = syntax;
+		sampleValue = value;
+		sampleTime = now;
+		sampleUpTime = upTime;
+		return result;
+	}
+
+	private boolean withinDeadband(double value, double previous) {
+		double limit = percent ? Math.abs(previous) * deadband / 100 : deadband;
+		return Math.abs(value - previous) <= limit;
+	}
+
+	private boolean heartbeatDue(long now) {
+		return heartbeat > 0 && now - lastTime >= heartbeat;
+	}
+
+	private static boolean hasDeadband(int syntax) {
+		return syntax == SMIConstants.SYNTAX_INTEGER || syntax == SMIConstants.SYNTAX_GAUGE32;
+	}
+
+	static boolean isCounter(int syntax) {
+		return syntax == SMIConstants.SYNTAX_COUNTER32 || syntax == SMIConstants.SYNTAX_COUNTER64;
+	}
+
+	/**
+	 * The value of a long read as an unsigned 64 bit number.
+	 */
+	static double unsigned(long value) {
+		return (value >= 0) ? value : (double) (value >>> 1) * 2 + (value & 1);
+	}
+
+}
@@ -0,0 +1,65 @@
+package snmp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Bounds the number of requests an agent has in flight. Requests submitted
+ * while the gate is full wait in FIFO order and are sent as earlier
+ * requests are released.
+ */
+class RequestGate {
+
+	private int max;
+	private int inFlight = 0;
+	private final Queue<Runnable> waiting = new ArrayDeque<Runnable>();
+
+	RequestGate(int max) {
+		this.max = Math.max(1, max);
+	}
+
+	void setMax(int max) {
+		List<Runnable> ready = new ArrayList<Runnable>();
+		synchronized (this) {
+			this.max = Math.max(1, max);
+			while (inFlight < this.max && !waiting.isEmpty()) {
+				inFlight++;
+				ready.add(waiting.poll());
+			}
+		}
+		for (Runnable request: ready) {
+			request.run();
+		}
+	}
+
+	synchronized int inFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Runs the request right away if there is room, otherwise queues it.
+	 * Every submitted request must be paired with one call to release().
+	 */
+	void submit(Runnable request) {
+		synchronized (this) {
+			if (inFlight >= max) {
+				waiting.add(request);
+				return;
+			}
+			inFlight++;
+		}
+		request.run();
+	}
+
+	void release() {
+		Runnable next;
+		synchronized (this) {
+			next = (inFlight <= max) ? waiting.poll() : null;
+			if (next == null && inFlight > 0) inFlight--;
+		}
+		if (next != null) next.run();
+	}
+
+}
@@ -0,0 +1,199 @@
+package snmp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.Permission;
+import org.dsa.iot.dslink.node.actions.Action;
+import org.dsa.iot.dslink.node.actions.ActionResult;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.snmp4j.PDU;
+import org.snmp4j.Target;
+import org.snmp4j.event.ResponseEvent;
+
+/**
+ * Request counters and a response time histogram for one agent, fed from
+ * the response callbacks of polls and walks without locking. Published
+ * under the agent's METRICS node whenever the link's metrics timer runs.
+ * Response times are bucketed, so percentiles are interpolated within
+ * their bucket. A response arriving after SNMP4J retransmitted the request
+ * may answer any of the transmissions, so it is counted as a retried
+ * response and left out of the response times.
+ */
+class RequestMetrics {
+
+	// upper bounds of the response time buckets in ms, the last bucket has none
+	private static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+	// highest error status SNMP defines, inconsistentName
+	private static final int MAX_ERROR_STATUS = 18;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong responses = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong retriedResponses = new AtomicLong();
+	// responses by error status, the last slot for statuses above MAX_ERROR_STATUS
+	private final AtomicLongArray errors = new AtomicLongArray(MAX_ERROR_STATUS + 2);
+	private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+	private Node sentNode, responsesNode, timeoutsNode, retriesNode, retriedResponsesNode, errorsNode;
+	private Node p50Node, p95Node, p99Node;
+	private String lastErrors;
+
+	void createNodes(Node parent) {
+		Node mnode = parent.getChild("METRICS");
+		if (mnode == null) mnode = parent.createChild("METRICS").build();
+		mnode.setSerializable(false);
+		sentNode = mnode.createChild("Requests").setValueType(ValueType.NUMBER).setValue(new Value(0)).build();
+		responsesNode = mnode.createChild("Responses").setValueType(ValueType.NUMBER).setValue(new Value(0)).build();
+		timeoutsNode = mnode.createChild("Timeouts").setValueType(ValueType.NUMBER).setValue(new Value(0)).build();
+		retriesNode = mnode.createChild("Retries").setValueType(ValueType.NUMBER).setValue(new Value(0)).build();
+		retriedResponsesNode = mnode.createChild("Retried Responses").setValueType(ValueType.NUMBER).setValue(new Value(0))
+				.setAttribute("Description", new Value("Responses that arrived after the request was retransmitted, "
+						+ "not included in the RTT percentiles")).build();
+		errorsNode = mnode.createChild("Errors").setValueType(ValueType.STRING).setValue(new Value(new JsonObject().toString())).build();
+		p50Node = rttNode(mnode, "RTT p50");
+		p95Node = rttNode(mnode, "RTT p95");
+		p99Node = rttNode(mnode, "RTT p99");
+		Action act = new Action(Permission.READ, new Handler<ActionResult>() {
+			public void handle(ActionResult event) {
+				reset();
+				publish();
+			}
+		});
+		mnode.createChild("reset").setAction(act).build().setSerializable(false);
+	}
+
+	private static Node rttNode(Node parent, String name) {
+		return parent.createChild(name).setValueType(ValueType.NUMBER).setAttribute("Description",
+				new Value("ms from sending to the response, for responses to requests that were not retransmitted")).build();
+	}
+
+	void sent() {
+		sent.incrementAndGet();
+	}
+
+	/**
+	 * Counts a request sent again by the link itself, e.g. the rest of a
+	 * batch after an SNMPv1 agent rejected one of its OIDs.
+	 */
+	void retried() {
+		retries.incrementAndGet();
+	}
+
+	/**
+	 * Records the outcome of a request sent to the target at the given
+	 * System.nanoTime(). Counts the retransmissions SNMP4J made, all of them
+	 * for a timeout, else the ones due by the time the response arrived.
+	 */
+	void completed(ResponseEvent event, long sentNanos, Target target) {
+		PDU resp = event.getResponse();
+		int targetRetries = target.getRetries();
+		if (resp == null) {
+			timeouts.incrementAndGet();
+			if (targetRetries > 0) retries.addAndGet(targetRetries);
+			return;
+		}
+		responses.incrementAndGet();
+		int status = resp.getErrorStatus();
+		if (status != PDU.noError) errors.incrementAndGet(Math.min(Math.max(status, 0), MAX_ERROR_STATUS + 1));
+		long millis = (System.nanoTime() - sentNanos) / 1000000;
+		long timeout = target.getTimeout();
+		if (targetRetries > 0 && timeout > 0 && millis >= timeout) {
+			retriedResponses.incrementAndGet();
+			retries.addAndGet(Math.min(targetRetries, millis / timeout));
+			return;
+		}
+		buckets.incrementAndGet(bucket(millis));
+	}
+
+	void reset() {
+		sent.set(0);
+		responses.set(0);
+		timeouts.set(0);
+		retries.set(0);
+		retriedResponses.set(0);
+		for (int i = 0; i < errors.length(); i++) {
+			errors.set(i, 0);
+		}
+		for (int i = 0; i < buckets.length(); i++) {
+			buckets.set(i, 0);
+		}
+	}
+
+	void publish() {
+		if (sentNode == null) return;
+		setIfChanged(sentNode, sent.get());
+		setIfChanged(responsesNode, responses.get());
+		setIfChanged(timeoutsNode, timeouts.get());
+		setIfChanged(retriesNode, retries.get());
+		setIfChanged(retriedResponsesNode, retriedResponses.get());
+		JsonObject errs = new JsonObject();
+		for (int i = 1; i < errors.length(); i++) {
+			long count = errors.get(i);
+			if (count > 0) errs.put((i <= MAX_ERROR_STATUS) ? PDU.toErrorStatusText(i) : "other", count);
+		}
+		String json = errs.toString();
+		if (!json.equals(lastErrors)) {
+			lastErrors = json;
+			errorsNode.setValue(new Value(json));
+		}
+		long[] counts = new long[buckets.length()];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		setIfChanged(p50Node, percentile(counts, total, 0.50));
+		setIfChanged(p95Node, percentile(counts, total, 0.95));
+		setIfChanged(p99Node, percentile(counts, total, 0.99));
+	}
+
+	private static int bucket(long millis) {
+		for (int i = 0; i < BOUNDS.length; i++) {
+			if (millis <= BOUNDS[i]) return i;
+		}
+		return BOUNDS.length;
+	}
+
+	/**
+	 * The response time in ms below which the given fraction of the timed
+	 * responses fall, or NaN if there are none.
+	 */
+	private static double percentile(long[] counts, long total, double fraction) {
+		if (total == 0) return Double.NaN;
+		double rank = fraction * total;
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] == 0 || seen + counts[i] < rank) {
+				seen += counts[i];
+				continue;
+			}
+			double lower = (i == 0) ? 0 : BOUNDS[i - 1];
+			// nothing to interpolate towards above the last bound
+			if (i == BOUNDS.length) return lower;
+			return lower + (BOUNDS[i] - lower) * (rank - seen) / counts[i];
+		}
+		return BOUNDS[BOUNDS.length - 1];
+	}
+
+	private static void setIfChanged(Node vnode, long value) {
+		Value old = vnode.getValue();
+		if (old == null || old.getNumber() == null || old.getNumber().longValue() != value) {
+			vnode.setValue(new Value(value));
+		}
+	}
+
+	private static void setIfChanged(Node vnode, double value) {
+		Value old = vnode.getValue();
+		if (Double.isNaN(value)) {
+			if (old != null) vnode.setValue(null);
+		} else if (old == null || old.getNumber() == null || old.getNumber().doubleValue() != value) {
+			vnode.setValue(new Value(value));
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+package snmp;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.Target;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+
+/**
+ * The single response listener of an Snmp session. Requests are sent with a
+ * callback that is registered under the request ID, and responses and
+ * timeouts are routed to it by that ID, so senders don't need a listener
+ * object per request and callbacks can be reused from request to request.
+ */
+class ResponseDispatcher implements ResponseListener {
+	static private final Logger LOGGER;
+	static {
+		LOGGER = LoggerFactory.getLogger(ResponseDispatcher.class);
+	}
+
+	/**
+	 * Receives the response to a request, or a null response on timeout.
+	 */
+	interface Callback {
+		void onResponse(ResponseEvent event);
+	}
+
+	private final Snmp snmp;
+	private final LongMap<Callback> pending = new LongMap<Callback>(1024);
+
+	ResponseDispatcher(Snmp snmp) {
+		this.snmp = snmp;
+	}
+
+	Snmp getSnmp() {
+		return snmp;
+	}
+
+	void send(PDU pdu, Target target, Callback callback) throws IOException {
+		snmp.send(pdu, target, null, this);
+		// SNMP4J assigns the request ID while sending
+		long id = pdu.getRequestID().getValue();
+		Callback early;
+		synchronized (pending) {
+			early = pending.remove(id);
+			if (early == null) pending.put(id, callback);
+		}
+		// the response was faster than the registration
+		if (early != null) callback.onResponse(((EarlyResponse) early).event);
+	}
+
+	/**
+	 * Number of requests waiting for a response or timeout.
+	 */
+	int pending() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	public void onResponse(ResponseEvent event) {
+		// SNMP4J requires every asynchronous request to be cancelled once answered
+		snmp.cancel(event.getRequest(), this);
+		long id = event.getRequest().getRequestID().getValue();
+		Callback callback;
+		synchronized (pending) {
+			callback = pending.remove(id);
+			if (callback == null) pending.put(id, new EarlyResponse(event));
+		}
+		if (callback == null) return;
+		try {
+			callback.onResponse(event);
+		} catch (RuntimeException e) {
+			LOGGER.error("error handling response");
+			LOGGER.debug("error:", e);
+		}
+	}
+
+	/**
+	 * Holds a response that arrived before its callback was registered.
+	 */
+	private static class EarlyResponse implements Callback {
+		final ResponseEvent event;
+
+		EarlyResponse(ResponseEvent event) {
+			this.event = event;
+		}
+
+		public void onResponse(ResponseEvent event) {
+		}
+	}
+
+}
@@ -6,21 +6,28 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.util.HashSet;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import net.percederberg.mibble.Mib;
 import net.percederberg.mibble.MibLoader;
 import net.percederberg.mibble.MibLoaderException;
-import net.percederberg.mibble.MibValueSymbol;
-import net.percederberg.mibble.value.ObjectIdentifierValue;
 
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.Permission;
@@ -28,6 +35,9 @@ import org.dsa.iot.dslink.node.actions.Action;
 import org.dsa.iot.dslink.node.actions.ActionResult;
 import org.dsa.iot.dslink.node.actions.EditorType;
 import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.ResultType;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.dslink.serializer.Deserializer;
@@ -38,19 +48,15 @@ import org.dsa.iot.dslink.util.json.JsonArray;
 import org.dsa.iot.dslink.util.json.JsonObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.snmp4j.CommandResponder;
-import org.snmp4j.CommandResponderEvent;
-import org.snmp4j.MessageDispatcher;
 import org.snmp4j.PDU;
 import org.snmp4j.PDUv1;
 import org.snmp4j.Snmp;
 import org.snmp4j.TransportMapping;
-import org.snmp4j.mp.MPv1;
-import org.snmp4j.mp.MPv2c;
 import org.snmp4j.mp.MPv3;
 import org.snmp4j.mp.SnmpConstants;
 import org.snmp4j.security.SecurityProtocols;
 import org.snmp4j.security.USM;
+import org.snmp4j.security.UsmUser;
 import org.snmp4j.smi.Address;
 import org.snmp4j.smi.GenericAddress;
 import org.snmp4j.smi.OID;
@@ -61,25 +67,35 @@ import org.snmp4j.smi.VariableBinding;
 import org.snmp4j.transport.DefaultUdpTransportMapping;
 import org.dsa.iot.dslink.util.handler.Handler;
 
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-
 
 public class SnmpLink {
 	
 	private final static Logger LOGGER;
 	Node node;
 	Node mibnode;
-	Snmp snmp;
-	private final Map<Node, ScheduledFuture<?>> futures;
+	SnmpShards shards;
+	PollScheduler pollScheduler;
+	TrapPipeline trapPipeline;
+	TrapJournal trapJournal;
+	final AgentIndex agentIndex = new AgentIndex();
+	// agents using each user name of the USM all sessions share
+	private final Map<OctetString, Integer> usmUsers = new HashMap<OctetString, Integer>();
 
 	Serializer copySerializer;
 	Deserializer copyDeserializer;
 	private static final File MIB_STORE = new File(".mib_store");
-	final ConcurrentLinkedQueue<Boolean> mibUse = new ConcurrentLinkedQueue<Boolean>();
-	private final  ConcurrentLinkedQueue<File> newMibs = new ConcurrentLinkedQueue<File>();
-	private final  ConcurrentLinkedQueue<File> deletedMibs = new ConcurrentLinkedQueue<File>();
-	private Mib[] allMibs = new Mib[0];
-	ScheduledFuture<?> mibFuture;
+	private static final File MIB_CACHE = new File(".mib_cache");
+	private static final File TRAP_JOURNAL = new File(".trap_journal");
+	static final int DEFAULT_RESTORE_THREADS = 4;
+	static final int DEFAULT_METRICS_INTERVAL = 5;
+	private ScheduledFuture<?> metricsFuture;
+	private final AtomicInteger mibUsers = new AtomicInteger();
+	// null until the MIB module directory is available
+	private volatile MibModules mibModules = null;
+	// tasks waiting for the MIBs by the node they update, the latest per node
+	private final ConcurrentHashMap<Node, Runnable> mibWaiters = new ConcurrentHashMap<Node, Runnable>();
+	private static final int MAX_MIB_WAITERS = 10000;
+	MibThread mibThread;
 	
 	private SnmpLink(Node node, Serializer ser, Deserializer deser) {
 		this.node = node;
@@ -89,7 +105,6 @@ public class SnmpLink {
         }
 		this.copySerializer = ser;
 		this.copyDeserializer = deser;
-		this.futures = new ConcurrentHashMap<>();
 	}
 	
 	public static SnmpLink start(Node parent, Serializer copyser, Deserializer copydeser) {
@@ -108,91 +123,120 @@ public class SnmpLink {
 			if (!MIB_STORE.mkdirs()) LOGGER.error("error making Mib Store directory");
 		}
 
-		// create limited thread pool as the link runs on a memory/cpu constrained device
-		ScheduledThreadPoolExecutor stpe = Objects.createDaemonThreadPool(4);
-		mibFuture = stpe.schedule(new MibThread(), 0, TimeUnit.SECONDS);
+		// MIBs are loaded and names resolved on one daemon thread, off the SDK and poll threads
+		mibThread = new MibThread();
+		Thread mibLoaderThread = new Thread(mibThread, "snmp-mib-loader");
+		mibLoaderThread.setDaemon(true);
+		mibLoaderThread.start();
+		
+		Value pollThreads = node.getAttribute("Poll Threads");
+		if (pollThreads == null) {
+			pollThreads = new Value(PollScheduler.DEFAULT_POLL_THREADS);
+			node.setAttribute("Poll Threads", pollThreads);
+		}
+		pollScheduler = new PollScheduler(pollThreads.getNumber().intValue());
+		Value pollRate = node.getAttribute("Max Poll Rate");
+		if (pollRate == null) {
+			pollRate = new Value(0);
+			node.setAttribute("Max Poll Rate", pollRate);
+		}
+		pollScheduler.setMaxStartsPerSecond(pollRate.getNumber().doubleValue());
+		
+		Value trapThreads = node.getAttribute("Trap Threads");
+		if (trapThreads == null) {
+			trapThreads = new Value(TrapPipeline.DEFAULT_THREADS);
+			node.setAttribute("Trap Threads", trapThreads);
+		}
+		Value trapQueue = node.getAttribute("Trap Queue Size");
+		if (trapQueue == null) {
+			trapQueue = new Value(TrapPipeline.DEFAULT_QUEUE_SIZE);
+			node.setAttribute("Trap Queue Size", trapQueue);
+		}
+		trapPipeline = new TrapPipeline(this, trapThreads.getNumber().intValue(), trapQueue.getNumber().intValue());
+		if (node.getAttribute("Trap Dedup Window") == null) node.setAttribute("Trap Dedup Window", new Value(0));
+		if (node.getAttribute("Trap Dedup Varbinds") == null) node.setAttribute("Trap Dedup Varbinds", new Value(""));
+		if (node.getAttribute("Trap Rate Limit") == null) node.setAttribute("Trap Rate Limit", new Value(0));
+		configureSuppressor();
+		Value journalMB = node.getAttribute("Journal Segment MB");
+		if (journalMB == null) {
+			journalMB = new Value(TrapJournal.DEFAULT_SEGMENT_MB);
+			node.setAttribute("Journal Segment MB", journalMB);
+		}
+		Value journalSegments = node.getAttribute("Journal Segments");
+		if (journalSegments == null) {
+			journalSegments = new Value(TrapJournal.DEFAULT_SEGMENTS);
+			node.setAttribute("Journal Segments", journalSegments);
+		}
+		trapJournal = new TrapJournal(TRAP_JOURNAL, journalMB.getNumber().intValue(), journalSegments.getNumber().intValue());
 		
 		// use default port as 4001
 		Address listenAddress = GenericAddress.parse(System.getProperty("snmp4j.listenAddress","udp:0.0.0.0/4001"));
-		TransportMapping<UdpAddress> transport;
 		TransportMapping<UdpAddress> traptransport;
+		Value transports = node.getAttribute("Transports");
+		if (transports == null) {
+			transports = new Value(SnmpShards.DEFAULT_TRANSPORTS);
+			node.setAttribute("Transports", transports);
+		}
+		Value dispatcherThreads = node.getAttribute("Dispatcher Threads");
+		if (dispatcherThreads == null) {
+			dispatcherThreads = new Value(SnmpShards.DEFAULT_DISPATCHER_THREADS);
+			node.setAttribute("Dispatcher Threads", dispatcherThreads);
+		}
+		Value receiveBuffer = node.getAttribute("Receive Buffer KB");
+		if (receiveBuffer == null) {
+			receiveBuffer = new Value(0);
+			node.setAttribute("Receive Buffer KB", receiveBuffer);
+		}
+		Value nioVal = node.getAttribute("NIO Transport");
+		if (nioVal == null) {
+			nioVal = new Value(false);
+			node.setAttribute("NIO Transport", nioVal);
+		}
+		boolean nio = nioVal.getBool();
+		Value restoreThreads = node.getAttribute("Restore Threads");
+		if (restoreThreads == null) {
+			restoreThreads = new Value(DEFAULT_RESTORE_THREADS);
+			node.setAttribute("Restore Threads", restoreThreads);
+		}
+		int nioThreads = (dispatcherThreads.getNumber().intValue() > 1) ? dispatcherThreads.getNumber().intValue() : 0;
 		
 		try {
-			transport = new DefaultUdpTransportMapping();
 			if (listenAddress instanceof UdpAddress) {
 				try {
-					traptransport = new DefaultUdpTransportMapping((UdpAddress)listenAddress);
+					traptransport = nio ? new NioUdpTransportMapping((UdpAddress) listenAddress, nioThreads)
+							: new DefaultUdpTransportMapping((UdpAddress)listenAddress);
 				} catch (Exception e1) {
 					LOGGER.debug("error: ", e1);
-					traptransport = new DefaultUdpTransportMapping();
+					traptransport = nio ? new NioUdpTransportMapping(null, nioThreads) : new DefaultUdpTransportMapping();
 				}
 			} else {
-				traptransport = new DefaultUdpTransportMapping();
+				traptransport = nio ? new NioUdpTransportMapping(null, nioThreads) : new DefaultUdpTransportMapping();
+			}
+			int receiveBufferSize = receiveBuffer.getNumber().intValue() * 1024;
+			if (receiveBufferSize > 0) {
+				if (traptransport instanceof NioUdpTransportMapping) {
+					((NioUdpTransportMapping) traptransport).setReceiveBufferSize(receiveBufferSize);
+				} else {
+					((DefaultUdpTransportMapping) traptransport).setReceiveBufferSize(receiveBufferSize);
+				}
 			}
 			LOGGER.info("Listening for traps on port " + traptransport.getListenAddress().getPort());
 			
-			snmp = new Snmp(transport);
 			Snmp trapsnmp = new Snmp(traptransport);
 			SecurityProtocols.getInstance().addDefaultProtocols();
-			MessageDispatcher disp = snmp.getMessageDispatcher();
-			disp.addMessageProcessingModel(new MPv1());
-			disp.addMessageProcessingModel(new MPv2c());
 			OctetString localEngineID = new OctetString(MPv3.createLocalEngineID());
 			    // For command generators, you may use the following code to avoid
 			    // engine ID clashes:
 			    // MPv3.createLocalEngineID(
 			    //   new OctetString("MyUniqueID"+System.currentTimeMillis())));
 			USM usm = new USM(SecurityProtocols.getInstance(), localEngineID, 0);
-			disp.addMessageProcessingModel(new MPv3(usm));
+			shards = new SnmpShards(transports.getNumber().intValue(), dispatcherThreads.getNumber().intValue(),
+					receiveBuffer.getNumber().intValue(), nio, usm);
 			
-			CommandResponder trapListener = new CommandResponder() {
-				 @SuppressFBWarnings
-			     public synchronized void processPdu(CommandResponderEvent e) {
-					 LOGGER.trace("received command responder event: " + e.toString());
-			    	 PDU command = e.getPDU();
-			    	 if (command != null) {
-			 			mibUse.add(true);
-			 			if (!mibnode.getAttribute("keep MIBs loaded").getBool()) try {
-							Thread.sleep(500);
-						} catch (InterruptedException ex1) {
-							LOGGER.debug("", ex1);
-						}
-			    		 LOGGER.debug("received trap: " + command.toString());
-			    		 String from = ((UdpAddress) e.getPeerAddress()).getInetAddress().getHostAddress();
-				    	 for (Node child: node.getChildren().values()) {
-				    		 Value ip = child.getAttribute("IP");
-				    		 if (ip != null && from.equals(ip.getString())) {
-				    			 Node tnode = child.getChild("TRAPS");
-				    			 //JsonArray traparr = new JsonArray(tnode.getValue().getString());
-				    			 // Publish each received TRAP PUD as a fresh Json Object at DSA node
-							 JsonObject jo = new JsonObject();
-				    			 jo.put("requestID", command.getRequestID().toLong());
-				    			 jo.put("time recieved", TimeUtils.format(System.currentTimeMillis()));
-				    			 if (command instanceof PDUv1) {
-				    				 PDUv1 cmdv1 = (PDUv1) command;
-				    				jo.put("snmp timestamp", (new TimeTicks(cmdv1.getTimestamp())).toString());
-				    				jo.put("enterprise", parseOid(cmdv1.getEnterprise()));
-				    				jo.put("genericTrap", cmdv1.getGenericTrap());
-				    				jo.put("specificTrap", cmdv1.getSpecificTrap());
-				    			 }
-				    			 for (VariableBinding vb: command.toArray()) {
-				    				 String fieldname = parseOid(vb.getOid());
-				    				 jo.put(fieldname, vb.toValueString());
-				    			 }
-				    			 //traparr.add(jo);
-				    			 tnode.setValue(new Value(jo.toString()));
-				    		 }
-				    	 }
-				    	 mibUse.remove();
-			    	 }
-			    	 e.setProcessed(true);
-			     }
-			   };
-			   
-			   trapsnmp.addCommandResponder(trapListener);
+			   trapsnmp.addCommandResponder(trapPipeline);
 			   trapsnmp.listen();
 			   
-			   snmp.listen();
+			   shards.listen();
 			   LOGGER.info("snmp started listening");
 			   
 		} catch (IOException e) {
@@ -202,13 +246,26 @@ public class SnmpLink {
 			//e.printStackTrace();
 		}
 		
-		restoreLastSession();
+		restoreLastSession(restoreThreads.getNumber().intValue());
+		trapPipeline.createStatsNodes(node);
+		if (node.getAttribute("Metrics Interval") == null) node.setAttribute("Metrics Interval", new Value(DEFAULT_METRICS_INTERVAL));
+		scheduleMetrics();
 		
-		Action act = new Action(Permission.READ, new ConfigHandler());
-		Value v = mibnode.getAttribute("keep MIBs loaded");
-		boolean defval = v == null || v.getBool();
-		act.addParameter(new Parameter("keep MIBs loaded", ValueType.BOOL, new Value(defval)));
-		node.createChild("options").setAction(act).build().setSerializable(false);
+		makeOptionsAction();
+		
+		Action act = new Action(Permission.READ, new JournalQueryHandler());
+		act.addParameter(new Parameter("Agent", ValueType.STRING, new Value("")));
+		Parameter range = new Parameter("Time Range", ValueType.STRING);
+		range.setEditorType(EditorType.DATE_RANGE);
+		act.addParameter(range);
+		act.addParameter(new Parameter("Trap OID", ValueType.STRING, new Value("")));
+		act.addResult(new Parameter("Time", ValueType.STRING));
+		act.addResult(new Parameter("Source", ValueType.STRING));
+		act.addResult(new Parameter("Trap", ValueType.STRING));
+		act.addResult(new Parameter("Variables", ValueType.STRING));
+		act.addResult(new Parameter("Suppressed", ValueType.NUMBER));
+		act.setResultType(ResultType.TABLE);
+		node.createChild("query trap journal").setAction(act).build().setSerializable(false);
 		
 		act = new Action(Permission.READ, new AddAgentHandler());
 		act.addParameter(new Parameter("Name", ValueType.STRING));
@@ -227,7 +284,12 @@ public class SnmpLink {
 		act.addParameter(new Parameter("Context Name", ValueType.STRING, new Value("")));
 		act.addParameter(new Parameter("Retries", ValueType.NUMBER, new Value(2)));
 		act.addParameter(new Parameter("Timeout", ValueType.NUMBER, new Value(1500)));
+		act.addParameter(new Parameter("Max OIDs per Request", ValueType.NUMBER, new Value(AgentNode.DEFAULT_MAX_OIDS_PER_REQUEST)));
+		act.addParameter(new Parameter("Max Requests in Flight", ValueType.NUMBER, new Value(AgentNode.DEFAULT_MAX_IN_FLIGHT)));
+		act.addParameter(new Parameter("Trap History Size", ValueType.NUMBER, new Value(TrapBuffer.DEFAULT_CAPACITY)));
+		act.addParameter(new Parameter("Counter Rate", ValueType.BOOL, new Value(false)));
 		node.createChild("addAgent").setAction(act).build().setSerializable(false);
+		new AgentTransfer(this);
 
 		act = new Action(Permission.READ, new AddMibHandler());
 		Parameter param = new Parameter("MIB Text", ValueType.STRING);
@@ -236,67 +298,139 @@ public class SnmpLink {
 		mibnode.createChild("add MIB").setAction(act).build().setSerializable(false);
 	}
 	
-	private class MibThread implements Runnable {
+	/**
+	 * Keeps mibModules up to date. The module directory normally comes from
+	 * the MIB cache; the MIBs themselves are only parsed when the cache is
+	 * missing or stale, or when a MIB is added or removed, and the result is
+	 * cached again. With "keep MIBs loaded" off, the parsed MIBs are dropped
+	 * while unused and only the most recently used modules stay loaded.
+	 * The thread sleeps until it gets a command, and handles a burst of
+	 * commands with a single rebuild.
+	 */
+	class MibThread implements Runnable {
 		private final MibLoader mibLoader = new MibLoader();
+		private final MibCache mibCache = new MibCache(MIB_CACHE, MIB_STORE);
+		private final BlockingQueue<MibCommand> commands = new LinkedBlockingQueue<MibCommand>();
+		// mibModules is set
 		private boolean loaded = false;
+		// the MIBs are parsed into mibLoader
+		private boolean parsed = false;
+		
+		void post(MibCommand.Type type, File file) {
+			commands.add(new MibCommand(type, file));
+		}
+		
+		void stop() {
+			post(MibCommand.Type.STOP, null);
+		}
+		
 		public void run() {
 			mibLoader.addDir(MIB_STORE);
-			if (mibnode.getAttribute("keep MIBs loaded") == null || mibnode.getAttribute("keep MIBs loaded").getBool()) {
-				allMibs = null;
-				loadAllMibs();
-				allMibs = mibLoader.getAllMibs();
-				loaded = true;
+			createMibNodes();
+			if (mibnode.getAttribute("keep MIBs loaded") == null) {
 				mibnode.setAttribute("keep MIBs loaded", new Value(true));
 			}
-			while(true) {
-				boolean changed = false;
-				if (loaded && !mibnode.getAttribute("keep MIBs loaded").getBool() && mibUse.isEmpty()) {
-					mibLoader.unloadAll();
-					allMibs = new Mib[0];
-					loaded = false;
-				}
-				if (!loaded && !mibUse.isEmpty()) {
-					allMibs = null;
-					loadAllMibs();
-					allMibs = mibLoader.getAllMibs();
-					loaded = true;
+			// reading the module directory is cheap, so a valid cache is used right away
+			MibModules modules = mibCache.load(mibCache.fingerprint());
+			if (modules != null) {
+				mibModules = modules;
+				loaded = true;
+			} else if (mibnode.getAttribute("keep MIBs loaded").getBool()) {
+				rebuild();
+			}
+			update();
+			boolean changed = false;
+			while (true) {
+				MibCommand command;
+				try {
+					command = commands.take();
+				} catch (InterruptedException e) {
+					break;
 				}
-				while (!newMibs.isEmpty()) {
-					File f = newMibs.remove();
-					if (loaded)
+				if (command.type == MibCommand.Type.STOP) break;
+				if (command.type == MibCommand.Type.ADD) {
+					if (parsed) {
 						try {
-							mibLoader.load(f);
-							changed = true;
+							mibLoader.load(command.file);
 						} catch (IOException e) {
 							LOGGER.debug("error:", e);
 						} catch (MibLoaderException e) {
-							LOGGER.debug("error: unable to load MIB file ", f.getName());
+							LOGGER.debug("error: unable to load MIB file ", command.file.getName());
 					                e.getLog().printTo(System.out);
 						}
-				}
-				while (!deletedMibs.isEmpty()) {
-					File f = deletedMibs.remove();
-					if (loaded)
+					}
+					changed = true;
+				} else if (command.type == MibCommand.Type.REMOVE) {
+					if (parsed)
 						try {
-							mibLoader.unload(f);
-							changed = true;
+							mibLoader.unload(command.file);
 						} catch (MibLoaderException e) {
 							LOGGER.debug("error:", e);
 						}
-					if (!f.delete()) LOGGER.error("Error deleting MIB file");
+					if (!command.file.delete()) LOGGER.error("Error deleting MIB file");
+					changed = true;
 				}
-				if (changed) {
-					allMibs = mibLoader.getAllMibs();
-				}
-				try {
-					Thread.sleep(250);
-				} catch (InterruptedException e) {
-					LOGGER.debug("error:", e);
+				if (!commands.isEmpty()) continue;
+				// without a directory the next use rebuilds anyway
+				if (changed && loaded) rebuild();
+				changed = false;
+				update();
+			}
+			if (parsed) mibLoader.unloadAll();
+		}
+		
+		/**
+		 * Applies the current options and MIB use: parses or drops the MIBs
+		 * as needed and runs the tasks waiting for names.
+		 */
+		private void update() {
+			boolean keep = mibnode.getAttribute("keep MIBs loaded").getBool();
+			if (loaded) mibModules.setMaxLoaded(keep ? 0 : MibModules.DEFAULT_MAX_LOADED);
+			if (parsed && !keep && mibUsers.get() == 0) {
+				mibLoader.unloadAll();
+				parsed = false;
+			}
+			if (!loaded && mibUsers.get() > 0) {
+				rebuild();
+			}
+			if (loaded) runMibWaiters();
+		}
+		
+		/**
+		 * Parses the MIBs, caches their symbols and sets mibModules from the
+		 * new cache (or from memory if the cache cannot be written).
+		 */
+		void rebuild() {
+			LOGGER.info("MIB cache missing or out of date, parsing MIBs");
+			byte[] fingerprint = mibCache.fingerprint();
+			if (!parsed) parseMibs();
+			try {
+				byte[] encoded = MibCache.encode(mibLoader.getAllMibs());
+				mibCache.save(encoded, fingerprint);
+				MibModules modules = mibCache.load(fingerprint);
+				if (modules == null) modules = new MibModules(ByteBuffer.wrap(encoded));
+				modules.setMaxLoaded(mibnode.getAttribute("keep MIBs loaded").getBool() ? 0 : MibModules.DEFAULT_MAX_LOADED);
+				mibModules = modules;
+				loaded = true;
+			} catch (IOException e) {
+				LOGGER.debug("error:", e);
+			}
+		}
+		
+		void createMibNodes() {
+			File[] files = MIB_STORE.listFiles();
+			if (files != null) {
+				for (File mibFile : files) {
+					String name = mibFile.getName();
+					Node child = mibnode.createChild(name).build();
+					child.setSerializable(false);
+					Action act = new Action(Permission.READ, new RemoveMibHandler(child));
+					child.createChild("remove").setAction(act).build().setSerializable(false);
 				}
 			}
 		}
 		
-		void loadAllMibs() {
+		void parseMibs() {
 			for (String mibName: Config.STANDARD_MIBS) {
 				try {
 					mibLoader.load(mibName);
@@ -310,11 +444,6 @@ public class SnmpLink {
 			File[] files = MIB_STORE.listFiles();
 			if (files != null) {
 				for (File mibFile : files) {
-					String name = mibFile.getName();
-					Node child = mibnode.createChild(name).build();
-					child.setSerializable(false);
-					Action act = new Action(Permission.READ, new RemoveMibHandler(child));
-					child.createChild("remove").setAction(act).build().setSerializable(false);
 					try {
 						mibLoader.load(mibFile);
 					} catch (IOException e) {
@@ -324,11 +453,22 @@ public class SnmpLink {
 					}
 				}
 			}
+			parsed = true;
 		}
 	}
 
-	private void restoreLastSession() {
+	/**
+	 * Restores the agents of the last session. The agent nodes are checked on
+	 * this thread and then restored on a pool of the given size, agents that
+	 * were being polled first. SNMPv3 agents are set up afterwards on a
+	 * background thread, or as soon as they are used, because deriving their
+	 * USM keys is slow. The time each phase takes is logged.
+	 */
+	private void restoreLastSession(int threads) {
 		if (node.getChildren() == null) return;
+		long start = System.currentTimeMillis();
+		List<Node> polled = new ArrayList<Node>();
+		List<Node> others = new ArrayList<Node>();
 		for (Node child: node.getChildren().values()) {
 			Value fullip = child.getAttribute("ip");
 			Value ip = child.getAttribute("IP");
@@ -365,62 +505,409 @@ public class SnmpLink {
 					&& authPass!=null && privProt!=null && privPass!=null && 
 					engine!=null && cEngine!=null && cName!=null) {
 
-				AgentNode an = new AgentNode(this, child);
-				an.restoreLastSession();
+				Value wasPolled = child.getAttribute("Subscribed");
+				if (wasPolled != null && wasPolled.getBool() != null && wasPolled.getBool()) polled.add(child);
+				else others.add(child);
 			} else if (child.getAction() == null && !child.getName().equals("MIBs")) {
 				node.removeChild(child);
 			}
 		}
+		long checked = System.currentTimeMillis();
+		LOGGER.info("restore: checked " + (polled.size() + others.size()) + " agents in " + (checked - start) + " ms");
+		
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), new DaemonThreadFactory("snmp-restore-"));
+		List<AgentNode> deferredPolled = Collections.synchronizedList(new ArrayList<AgentNode>());
+		List<AgentNode> deferredOthers = Collections.synchronizedList(new ArrayList<AgentNode>());
+		List<Future<?>> polledDone = restoreAgents(pool, polled, deferredPolled);
+		List<Future<?>> othersDone = restoreAgents(pool, others, deferredOthers);
+		awaitRestore(polledDone);
+		long restoredPolled = System.currentTimeMillis();
+		LOGGER.info("restore: restored " + polled.size() + " polled agents in " + (restoredPolled - checked) + " ms");
+		awaitRestore(othersDone);
+		pool.shutdown();
+		long restored = System.currentTimeMillis();
+		LOGGER.info("restore: restored " + others.size() + " other agents in " + (restored - restoredPolled)
+				+ " ms, " + (restored - start) + " ms in total");
+		
+		final List<AgentNode> ordered = new ArrayList<AgentNode>(deferredPolled);
+		ordered.addAll(deferredOthers);
+		if (ordered.isEmpty()) return;
+		Thread setupThread = new Thread(new Runnable() {
+			public void run() {
+				long setupStart = System.currentTimeMillis();
+				for (AgentNode an: ordered) {
+					// skip agents removed since
+					if (node.getChild(an.node.getName()) != an.node) continue;
+					try {
+						an.ensureSetup();
+					} catch (RuntimeException e) {
+						LOGGER.error("error setting up agent " + an.node.getName());
+						LOGGER.debug("error:", e);
+					}
+				}
+				LOGGER.info("restore: set up " + ordered.size() + " SNMPv3 agents in "
+						+ (System.currentTimeMillis() - setupStart) + " ms");
+			}
+		}, "snmp-v3-setup");
+		setupThread.setDaemon(true);
+		setupThread.start();
 	}
 	
-	String parseOid(OID oid) {
-		String oidString = oid.toDottedString();
-		MibValueSymbol bestmatch = null;
-		while (allMibs == null || !newMibs.isEmpty()) {
+	private List<Future<?>> restoreAgents(ExecutorService pool, List<Node> agentNodes, final List<AgentNode> deferred) {
+		List<Future<?>> futures = new ArrayList<Future<?>>(agentNodes.size());
+		for (final Node child: agentNodes) {
+			futures.add(pool.submit(new Runnable() {
+				public void run() {
+					AgentNode an = new AgentNode(SnmpLink.this, child, false);
+					an.restoreLastSession();
+					if (an.getVersion() == SnmpVersion.v3) {
+						an.deferSetup();
+						deferred.add(an);
+					} else {
+						an.setup();
+					}
+				}
+			}));
+		}
+		return futures;
+	}
+	
+	private static void awaitRestore(List<Future<?>> futures) {
+		for (Future<?> future: futures) {
 			try {
-				Thread.sleep(100);
+				future.get();
+			} catch (ExecutionException e) {
+				LOGGER.error("error restoring agent");
+				LOGGER.debug("error:", e.getCause());
 			} catch (InterruptedException e) {
-				LOGGER.debug("", e);
+				Thread.currentThread().interrupt();
+				return;
 			}
 		}
-		for (Mib mib: allMibs) {
-			MibValueSymbol mvs = mib.getSymbolByOid(oidString);
-			ObjectIdentifierValue mvsOid = getOidFromSymbol(mvs);
-			if (mvsOid != null) {
-				if (bestmatch == null || mvsOid.toString().length() > getOidFromSymbol(bestmatch).toString().length()) {
-					bestmatch = mvs;
+	}
+	
+	/**
+	 * Adds an agent's user to the shared USM. Agents set up at the same time
+	 * only ever touch their own users, never clear the table.
+	 */
+	synchronized void addUsmUser(USM usm, OctetString name, UsmUser user) {
+		usm.addUser(name, user);
+		Integer count = usmUsers.get(name);
+		usmUsers.put(name, (count == null) ? 1 : count + 1);
+	}
+	
+	/**
+	 * Releases an agent's user, removing it from the USM once no agent uses
+	 * that name any more.
+	 */
+	synchronized void removeUsmUser(USM usm, OctetString name) {
+		Integer count = usmUsers.get(name);
+		if (count == null) return;
+		if (count > 1) {
+			usmUsers.put(name, count - 1);
+			return;
+		}
+		usmUsers.remove(name);
+		usm.removeAllUsers(name, null);
+	}
+	
+	/**
+	 * Resolves an OID to its name using the MIBs loaded right now. While the
+	 * MIBs are not loaded, the dotted OID is returned instead of waiting.
+	 */
+	String parseOid(OID oid) {
+		MibModules modules = mibModules;
+		if (modules == null) return oid.toDottedString();
+		return modules.resolve(oid);
+	}
+	
+	boolean mibsReady() {
+		return mibModules != null;
+	}
+	
+	/**
+	 * Marks the MIBs as in use, e.g. for the duration of a walk, so they get
+	 * loaded (if "keep MIBs loaded" is off) and stay loaded until released.
+	 */
+	void acquireMibs() {
+		if (mibUsers.incrementAndGet() == 1) mibThread.post(MibCommand.Type.USE, null);
+	}
+	
+	void releaseMibs() {
+		if (mibUsers.decrementAndGet() == 0) mibThread.post(MibCommand.Type.USE, null);
+	}
+	
+	/**
+	 * Runs the task once the MIBs are loaded, to replace dotted OIDs in the
+	 * given node with names. A node has at most one waiting task, the latest
+	 * replacing the one before, so a trap storm while the MIBs load adds no
+	 * more than one task per TRAPS node. Beyond MAX_MIB_WAITERS nodes, tasks
+	 * are dropped and those nodes keep their dotted OIDs. Pending tasks count
+	 * as MIB use, so they also make sure the MIBs get loaded when "keep MIBs
+	 * loaded" is off.
+	 */
+	void whenMibsReady(Node target, Runnable task) {
+		if (mibWaiters.size() >= MAX_MIB_WAITERS && !mibWaiters.containsKey(target)) {
+			LOGGER.debug("too many nodes waiting for MIBs, " + target.getName() + " keeps its dotted OIDs");
+			return;
+		}
+		if (mibWaiters.put(target, task) == null) acquireMibs();
+		if (mibsReady()) runMibWaiters();
+	}
+	
+	private void runMibWaiters() {
+		for (Node target: mibWaiters.keySet()) {
+			Runnable task = mibWaiters.remove(target);
+			if (task == null) continue;
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				LOGGER.debug("error:", e);
+			} finally {
+				releaseMibs();
+			}
+		}
+	}
+	
+	/**
+	 * Decode stage of the trap pipeline: queues the trap for the history of
+	 * each agent at its source address and, for agents whose TRAPS node is
+	 * subscribed, builds the published JSON form.
+	 */
+	void decodeTrap(final PDU command, UdpAddress from, final long received, final OID trapOid, final int suppressed) {
+		if (LOGGER.isDebugEnabled()) LOGGER.debug("received trap: " + command.toString());
+		trapJournal.append(received, from.getInetAddress(), command, suppressed);
+		Set<AgentNode> agents = agentIndex.get(from.getInetAddress());
+		if (agents.isEmpty()) return;
+		boolean resolved = mibsReady();
+		String json = null;
+		boolean attempted = false;
+		boolean queued = false;
+		for (final AgentNode agent: agents) {
+			final Node tnode = agent.node.getChild("TRAPS");
+			if (tnode == null) continue;
+			if (agent.trapsSubscribed && json == null) json = trapJson(command, received, suppressed);
+			final String published = agent.trapsSubscribed ? json : null;
+			attempted = true;
+			boolean accepted = trapPipeline.publish(agent.trapUpdates, new Runnable() {
+				public void run() {
+					agent.traps.add(received, trapOid, command, suppressed);
+					if (published != null) tnode.setValue(new Value(published));
 				}
+			});
+			queued |= accepted;
+			if (accepted && published != null && !resolved) fillTrapNames(agent, tnode, command, received, suppressed, published);
+		}
+		if (attempted) trapPipeline.countTrap(queued);
+	}
+	
+	/**
+	 * Publishes the most recent buffered trap of the agent, used when its
+	 * TRAPS node gets subscribed.
+	 */
+	void publishLatestTrap(final AgentNode agent) {
+		final Node tnode = agent.node.getChild("TRAPS");
+		if (tnode == null) return;
+		agent.traps.latest(new TrapBuffer.Visitor() {
+			public void visit(final long time, OID trapOid, final PDU pdu, final int suppressed) {
+				trapPipeline.publish(agent.trapUpdates, new Runnable() {
+					public void run() {
+						tnode.setValue(new Value(trapJson(pdu, time, suppressed)));
+					}
+				});
 			}
+		});
+	}
+	
+	private String trapJson(PDU command, long received, int suppressed) {
+		JsonObject jo = new JsonObject();
+		jo.put("requestID", command.getRequestID().toLong());
+		jo.put("time recieved", TimeUtils.format(received));
+		if (suppressed > 0) jo.put("suppressed", suppressed);
+		if (command instanceof PDUv1) {
+			PDUv1 cmdv1 = (PDUv1) command;
+			jo.put("snmp timestamp", (new TimeTicks(cmdv1.getTimestamp())).toString());
+			jo.put("enterprise", parseOid(cmdv1.getEnterprise()));
+			jo.put("genericTrap", cmdv1.getGenericTrap());
+			jo.put("specificTrap", cmdv1.getSpecificTrap());
 		}
-		if (bestmatch == null) return oidString;
-		String matchingOidString = getOidFromSymbol(bestmatch).toString(); //.replace('.', ',');
-		//oidString = oidString.replace('.', ',');
-		String retString = oidString.replaceFirst(matchingOidString, bestmatch.getName());
-		return retString; //.replace(',', '.');
-		
+		for (VariableBinding vb: command.toArray()) {
+			String fieldname = parseOid(vb.getOid());
+			jo.put(fieldname, vb.toValueString());
+		}
+		return jo.toString();
 	}
 	
-	private static ObjectIdentifierValue getOidFromSymbol(MibValueSymbol mvs) {
-		if (mvs != null && mvs.getValue() instanceof ObjectIdentifierValue) {
-            return (ObjectIdentifierValue) mvs.getValue();
-        }
-		return null;
+	/**
+	 * Republishes a trap that was published with dotted OIDs once the names
+	 * are known, unless a newer trap has replaced it in the meantime.
+	 */
+	private void fillTrapNames(final AgentNode agent, final Node tnode, final PDU command, final long received,
+			final int suppressed, final String published) {
+		whenMibsReady(tnode, new Runnable() {
+			public void run() {
+				Value current = tnode.getValue();
+				if (current != null && published.equals(current.getString())) {
+					final String json = trapJson(command, received, suppressed);
+					trapPipeline.publish(agent.trapUpdates, new Runnable() {
+						public void run() {
+							tnode.setValue(new Value(json));
+						}
+					});
+				}
+			}
+		});
 	}
 	
 	private class ConfigHandler implements Handler<ActionResult> {
 		public void handle(ActionResult event) {
 			boolean keepLoaded = event.getParameter("keep MIBs loaded", ValueType.BOOL).getBool();
+			int pollThreads = event.getParameter("Poll Threads", ValueType.NUMBER).getNumber().intValue();
+			double pollRate = event.getParameter("Max Poll Rate", ValueType.NUMBER).getNumber().doubleValue();
+			int trapThreads = event.getParameter("Trap Threads", ValueType.NUMBER).getNumber().intValue();
+			int trapQueue = event.getParameter("Trap Queue Size", ValueType.NUMBER).getNumber().intValue();
+			double dedupWindow = event.getParameter("Trap Dedup Window", ValueType.NUMBER).getNumber().doubleValue();
+			Value varbindsVal = event.getParameter("Trap Dedup Varbinds");
+			String dedupVarbinds = (varbindsVal != null && varbindsVal.getString() != null) ? varbindsVal.getString() : "";
+			double rateLimit = event.getParameter("Trap Rate Limit", ValueType.NUMBER).getNumber().doubleValue();
+			int journalMB = event.getParameter("Journal Segment MB", ValueType.NUMBER).getNumber().intValue();
+			int journalSegments = event.getParameter("Journal Segments", ValueType.NUMBER).getNumber().intValue();
+			int transports = event.getParameter("Transports", ValueType.NUMBER).getNumber().intValue();
+			int dispatcherThreads = event.getParameter("Dispatcher Threads", ValueType.NUMBER).getNumber().intValue();
+			int receiveBuffer = event.getParameter("Receive Buffer KB", ValueType.NUMBER).getNumber().intValue();
+			boolean nio = event.getParameter("NIO Transport", ValueType.BOOL).getBool();
+			int restoreThreads = event.getParameter("Restore Threads", ValueType.NUMBER).getNumber().intValue();
+			double metricsInterval = event.getParameter("Metrics Interval", ValueType.NUMBER).getNumber().doubleValue();
 			
 			mibnode.setAttribute("keep MIBs loaded", new Value(keepLoaded));
+			mibThread.post(MibCommand.Type.OPTIONS, null);
+			pollThreads = Math.max(1, pollThreads);
+			node.setAttribute("Poll Threads", new Value(pollThreads));
+			pollScheduler.setThreads(pollThreads);
+			pollRate = Math.max(0, pollRate);
+			node.setAttribute("Max Poll Rate", new Value(pollRate));
+			pollScheduler.setMaxStartsPerSecond(pollRate);
+			trapThreads = Math.max(1, trapThreads);
+			node.setAttribute("Trap Threads", new Value(trapThreads));
+			trapPipeline.setThreads(trapThreads);
+			// the queue size takes effect the next time the link starts
+			node.setAttribute("Trap Queue Size", new Value(Math.max(1, trapQueue)));
+			node.setAttribute("Trap Dedup Window", new Value(Math.max(0, dedupWindow)));
+			node.setAttribute("Trap Dedup Varbinds", new Value(dedupVarbinds));
+			node.setAttribute("Trap Rate Limit", new Value(Math.max(0, rateLimit)));
+			configureSuppressor();
+			journalMB = Math.max(1, journalMB);
+			journalSegments = Math.max(0, journalSegments);
+			node.setAttribute("Journal Segment MB", new Value(journalMB));
+			node.setAttribute("Journal Segments", new Value(journalSegments));
+			trapJournal.setLimits(journalMB, journalSegments);
+			// the transports take effect the next time the link starts
+			node.setAttribute("Transports", new Value(Math.max(1, transports)));
+			node.setAttribute("Dispatcher Threads", new Value(Math.max(1, dispatcherThreads)));
+			node.setAttribute("Receive Buffer KB", new Value(Math.max(0, receiveBuffer)));
+			node.setAttribute("NIO Transport", new Value(nio));
+			node.setAttribute("Restore Threads", new Value(Math.max(1, restoreThreads)));
+			node.setAttribute("Metrics Interval", new Value(Math.max(0, metricsInterval)));
+			scheduleMetrics();
 
-			Action act = new Action(Permission.READ, new ConfigHandler());
-			act.addParameter(new Parameter("keep MIBs loaded", ValueType.BOOL, new Value(keepLoaded)));
-			Node anode = node.getChild("options");
-			if (anode != null) anode.setAction(act);
-			else node.createChild("options").setAction(act).build().setSerializable(false);
+			makeOptionsAction();
 		}
 	}
 	
+	/**
+	 * Streams traps from the journal, optionally restricted to the address of
+	 * one agent, a time range and a trap OID prefix.
+	 */
+	private class JournalQueryHandler implements Handler<ActionResult> {
+		public void handle(ActionResult event) {
+			Value agentVal = event.getParameter("Agent");
+			Value rangeVal = event.getParameter("Time Range");
+			Value oidVal = event.getParameter("Trap OID");
+			Set<InetAddress> sources = null;
+			if (agentVal != null && agentVal.getString() != null && !agentVal.getString().trim().isEmpty()) {
+				Node agentNode = node.getChild(agentVal.getString().trim());
+				InetAddress source = (agentNode != null) ? AgentNode.sourceAddress(agentNode) : null;
+				if (source == null) return;
+				sources = Collections.singleton(source);
+			}
+			long[] range = TrapBuffer.parseTimeRange((rangeVal != null) ? rangeVal.getString() : null);
+			OID prefix = null;
+			if (oidVal != null && oidVal.getString() != null && !oidVal.getString().trim().isEmpty()) {
+				prefix = new OID(oidVal.getString().trim());
+			}
+			final Table table = event.getTable();
+			trapJournal.query(range[0], range[1], sources, prefix, new TrapJournal.Visitor() {
+				public void visit(long time, InetAddress source, OID trapOid, PDU pdu, int suppressed) {
+					JsonObject vars = new JsonObject();
+					for (VariableBinding vb: pdu.toArray()) {
+						vars.put(parseOid(vb.getOid()), vb.toValueString());
+					}
+					String trap = (trapOid != null) ? parseOid(trapOid) : "";
+					table.addRow(Row.make(new Value(TimeUtils.format(time)), new Value(source.getHostAddress()),
+							new Value(trap), new Value(vars.toString()), new Value(suppressed)));
+				}
+			});
+		}
+	}
+	
+	private void makeOptionsAction() {
+		Action act = new Action(Permission.READ, new ConfigHandler());
+		Value v = mibnode.getAttribute("keep MIBs loaded");
+		boolean defval = v == null || v.getBool();
+		act.addParameter(new Parameter("keep MIBs loaded", ValueType.BOOL, new Value(defval)));
+		act.addParameter(new Parameter("Poll Threads", ValueType.NUMBER, node.getAttribute("Poll Threads")));
+		act.addParameter(new Parameter("Max Poll Rate", ValueType.NUMBER, node.getAttribute("Max Poll Rate")));
+		act.addParameter(new Parameter("Trap Threads", ValueType.NUMBER, node.getAttribute("Trap Threads")));
+		act.addParameter(new Parameter("Trap Queue Size", ValueType.NUMBER, node.getAttribute("Trap Queue Size")));
+		act.addParameter(new Parameter("Trap Dedup Window", ValueType.NUMBER, node.getAttribute("Trap Dedup Window")));
+		act.addParameter(new Parameter("Trap Dedup Varbinds", ValueType.STRING, node.getAttribute("Trap Dedup Varbinds")));
+		act.addParameter(new Parameter("Trap Rate Limit", ValueType.NUMBER, node.getAttribute("Trap Rate Limit")));
+		act.addParameter(new Parameter("Journal Segment MB", ValueType.NUMBER, node.getAttribute("Journal Segment MB")));
+		act.addParameter(new Parameter("Journal Segments", ValueType.NUMBER, node.getAttribute("Journal Segments")));
+		act.addParameter(new Parameter("Transports", ValueType.NUMBER, node.getAttribute("Transports")));
+		act.addParameter(new Parameter("Dispatcher Threads", ValueType.NUMBER, node.getAttribute("Dispatcher Threads")));
+		act.addParameter(new Parameter("Receive Buffer KB", ValueType.NUMBER, node.getAttribute("Receive Buffer KB")));
+		act.addParameter(new Parameter("NIO Transport", ValueType.BOOL, node.getAttribute("NIO Transport")));
+		act.addParameter(new Parameter("Restore Threads", ValueType.NUMBER, node.getAttribute("Restore Threads")));
+		act.addParameter(new Parameter("Metrics Interval", ValueType.NUMBER, node.getAttribute("Metrics Interval")));
+		Node anode = node.getChild("options");
+		if (anode != null) anode.setAction(act);
+		else node.createChild("options").setAction(act).build().setSerializable(false);
+	}
+	
+	/**
+	 * (Re)starts publishing the agents' request metrics every 'Metrics
+	 * Interval' seconds, 0 to stop publishing them.
+	 */
+	private synchronized void scheduleMetrics() {
+		if (metricsFuture != null) metricsFuture.cancel(false);
+		metricsFuture = null;
+		double seconds = node.getAttribute("Metrics Interval").getNumber().doubleValue();
+		if (seconds <= 0) return;
+		long millis = Math.max(100, (long) (seconds * 1000));
+		metricsFuture = Objects.getDaemonThreadPool().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				if (node.getChildren() == null) return;
+				for (Node child: node.getChildren().values()) {
+					Object meta = child.getMetaData();
+					if (meta instanceof AgentNode) ((AgentNode) meta).metrics.publish();
+				}
+			}
+		}, millis, millis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Applies the trap suppression options: the dedup window in seconds, the
+	 * OID prefixes of the varbinds that distinguish otherwise identical traps,
+	 * and the per-source limit in traps per second. 0 disables either check.
+	 */
+	private void configureSuppressor() {
+		double window = node.getAttribute("Trap Dedup Window").getNumber().doubleValue();
+		String varbinds = node.getAttribute("Trap Dedup Varbinds").getString();
+		double rateLimit = node.getAttribute("Trap Rate Limit").getNumber().doubleValue();
+		trapPipeline.suppressor.configure((long) (window * 1000), rateLimit, varbinds);
+	}
+	
 	private class AddMibHandler implements Handler<ActionResult> {
 		public void handle(ActionResult event) {
 			String mibText = event.getParameter("MIB Text", ValueType.STRING).getString();
@@ -439,7 +926,7 @@ public class SnmpLink {
 			child.setSerializable(false);
 			Action act = new Action(Permission.READ, new RemoveMibHandler(child));
 			child.createChild("remove").setAction(act).build().setSerializable(false);
-			newMibs.add(mibFile);
+			mibThread.post(MibCommand.Type.ADD, mibFile);
 		}
 	}
 	
@@ -474,7 +961,7 @@ public class SnmpLink {
 		public void handle(ActionResult event) {
 			String name = toRemove.getName();
 			File remfile = new File(MIB_STORE, name);
-			deletedMibs.add(remfile);
+			mibThread.post(MibCommand.Type.REMOVE, remfile);
 			mibnode.removeChild(toRemove);
 			
 		}
@@ -519,6 +1006,10 @@ public class SnmpLink {
 			}
 			int retries = event.getParameter("Retries", ValueType.NUMBER).getNumber().intValue();
 			long timeout = event.getParameter("Timeout", ValueType.NUMBER).getNumber().longValue();
+			int maxOids = event.getParameter("Max OIDs per Request", ValueType.NUMBER).getNumber().intValue();
+			int maxReqs = event.getParameter("Max Requests in Flight", ValueType.NUMBER).getNumber().intValue();
+			int historySize = event.getParameter("Trap History Size", ValueType.NUMBER).getNumber().intValue();
+			boolean rates = event.getParameter("Counter Rate", ValueType.BOOL).getBool();
 			
 			Node child = node.createChild(name).build();
 			child.setAttribute("Polling Interval", new Value(interval));
@@ -536,6 +1027,10 @@ public class SnmpLink {
 			child.setAttribute("Context Name", new Value(cName));
 			child.setAttribute("Retries", new Value(retries));
 			child.setAttribute("Timeout", new Value(timeout));
+			child.setAttribute("Max OIDs per Request", new Value(Math.max(1, maxOids)));
+			child.setAttribute("Max Requests in Flight", new Value(Math.max(1, maxReqs)));
+			child.setAttribute("Trap History Size", new Value(Math.max(1, historySize)));
+			child.setAttribute("Counter Rate", new Value(rates));
 			new AgentNode(getMe(), child);
 		}
 	}
@@ -566,34 +1061,49 @@ public class SnmpLink {
 		}
 
 	void handleEdit(AgentNode agent) {
-		Set<Node> subbed = new HashSet<Node>(futures.keySet());
-		for (Node event: subbed) {
-			if (event.getMetaData() == agent) {
-				handleUnsub(agent, event);
-				handleSub(agent, event);
+		synchronized (agent) {
+			stopPolling(agent);
+			agent.resetPollState();
+			if (!agent.subscribed.isEmpty()) startPolling(agent);
+		}
+	}
+	
+	private void handleSub(AgentNode agent, Node event) {
+		agent.ensureSetup();
+		synchronized (agent) {
+			Value oid = event.getAttribute("oid");
+			if (oid == null || agent.subscribed.putIfAbsent(event, new PolledOid(event, new OID(oid.getString()), agent.counterRate)) != null) return;
+			agent.invalidatePollPlan();
+			if (agent.pollTask == null) {
+				startPolling(agent);
+				// lets the next startup restore this agent first
+				agent.node.setAttribute("Subscribed", new Value(true));
 			}
 		}
 	}
 	
-	private void handleSub(final AgentNode agent, final Node event) {
-		if (futures.containsKey(event)) {
-            return;
-        }
-        ScheduledThreadPoolExecutor stpe = Objects.getDaemonThreadPool();
-        ScheduledFuture<?> fut = stpe.scheduleWithFixedDelay(new Runnable() {
-            @Override
-            public void run() {
-            	if (event.getAttribute("oid") != null) agent.sendGetRequest(event);
-            }
-        }, 0, agent.interval, TimeUnit.MILLISECONDS);
-        futures.put(event, fut);
+	void handleUnsub(AgentNode agent, Node event) {
+		synchronized (agent) {
+			if (agent.subscribed.remove(event) == null) return;
+			agent.invalidatePollPlan();
+			if (agent.subscribed.isEmpty()) {
+				stopPolling(agent);
+				agent.node.setAttribute("Subscribed", new Value(false));
+			}
+		}
 	}
 	
-	private void handleUnsub(AgentNode agent, Node event) {
-		ScheduledFuture<?> fut = futures.remove(event);
-        if (fut != null) {
-            fut.cancel(false);
-        }
+	private void startPolling(AgentNode agent) {
+		agent.pollTask = pollScheduler.schedule(agent);
+	}
+	
+	void stopPolling(AgentNode agent) {
+		synchronized (agent) {
+			if (agent.pollTask != null) {
+				agent.pollTask.cancel();
+				agent.pollTask = null;
+			}
+		}
 	}
 	
     void setupOID(Node child, final AgentNode agent) {
@@ -612,6 +1122,21 @@ public class SnmpLink {
         });
     }
 	
+	/**
+	 * Request to the MIB loader thread.
+	 */
+	static class MibCommand {
+		enum Type {ADD, REMOVE, USE, OPTIONS, STOP}
+		
+		final Type type;
+		final File file;
+		
+		MibCommand(Type type, File file) {
+			this.type = type;
+			this.file = file;
+		}
+	}
+	
 	private SnmpLink getMe() {
 		return this;
 	}
@@ -1,6 +1,7 @@
 package snmp;
 
 import java.io.IOException;
+import java.math.BigInteger;
 
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
@@ -16,38 +17,39 @@ import org.dsa.iot.dslink.util.json.JsonObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.snmp4j.PDU;
-import org.snmp4j.ScopedPDU;
-import org.snmp4j.Snmp;
 import org.snmp4j.event.ResponseEvent;
-import org.snmp4j.event.ResponseListener;
+import org.snmp4j.Snmp;
 import org.snmp4j.smi.AbstractVariable;
 import org.snmp4j.smi.AssignableFromString;
 import org.snmp4j.smi.OID;
-import org.snmp4j.smi.OctetString;
 import org.snmp4j.smi.SMIConstants;
 import org.snmp4j.smi.Variable;
 import org.snmp4j.smi.VariableBinding;
 import org.dsa.iot.dslink.util.handler.Handler;
 
-import snmp.SnmpLink.SnmpVersion;
-
 public class SnmpNode {
 	static private final Logger LOGGER;
 
 	protected Node node;
 	protected SnmpLink link;
 	protected Snmp snmp;
+	protected ResponseDispatcher dispatcher;
 	protected AgentNode root;
 
 	SnmpNode(SnmpLink slink, Node mynode) {
 		link = slink;
 		node = mynode;
 		node.setAttribute("restoreType", new Value("folder"));
-		this.snmp = link.snmp;
+		// agents get their session here, the nodes below an agent share it
+		if (link.shards != null) {
+			this.dispatcher = link.shards.get(node.getName());
+			this.snmp = dispatcher.getSnmp();
+		}
 
 		Action act = new Action(Permission.READ, new GetHandler());
 		act.addParameter(new Parameter("Name", ValueType.STRING));
 		act.addParameter(new Parameter("OID", ValueType.STRING));
+		addPublishParameters(act, null);
 		node.createChild("addOID").setAction(act).build().setSerializable(false);
 		act = new Action(Permission.READ, new RemoveHandler());
 		node.createChild("remove").setAction(act).build().setSerializable(false);
@@ -57,6 +59,8 @@ public class SnmpNode {
 		act = new Action(Permission.READ, new WalkHandler());
 		act.addParameter(new Parameter("Name", ValueType.STRING));
 		act.addParameter(new Parameter("OID", ValueType.STRING, new Value("0.0")));
+		act.addParameter(new Parameter("Max Repetitions", ValueType.NUMBER, new Value(Walker.DEFAULT_MAX_REPETITIONS)));
+		act.addParameter(new Parameter("Parallel Cursors", ValueType.NUMBER, new Value(1)));
 		node.createChild("walk").setAction(act).build().setSerializable(false);
 
 		if (!(this instanceof AgentNode)) {
@@ -73,16 +77,36 @@ public class SnmpNode {
 	SnmpNode(SnmpLink slink, Node mynode, AgentNode anode) {
 		this(slink, mynode);
 		this.root = anode;
+		this.snmp = anode.snmp;
+		this.dispatcher = anode.dispatcher;
 	}
 
 	static {
 		LOGGER = LoggerFactory.getLogger(SnmpNode.class);
 	}
 
+	private static final BigInteger TWO_TO_64 = BigInteger.ONE.shiftLeft(64);
+
+	/**
+	 * Logs SET requests that failed or timed out; nothing waits for them.
+	 */
+	static final ResponseDispatcher.Callback SET_RESULT = new ResponseDispatcher.Callback() {
+		public void onResponse(ResponseEvent event) {
+			PDU resp = event.getResponse();
+			if (resp == null) {
+				LOGGER.warn("set request to " + event.getPeerAddress() + " timed out");
+			} else if (resp.getErrorStatus() != PDU.noError) {
+				LOGGER.warn("set request to " + event.getPeerAddress() + " failed: " + resp.getErrorStatusText());
+			}
+		}
+	};
+
 	class WalkHandler implements Handler<ActionResult> {
 		public void handle(ActionResult event) {
 			final String name = event.getParameter("Name", ValueType.STRING).getString();
 			String oid = event.getParameter("OID", ValueType.STRING).getString();
+			Value maxReps = event.getParameter("Max Repetitions");
+			Value parallel = event.getParameter("Parallel Cursors");
 			if (oid.charAt(0) == '.')
 				oid = oid.substring(1);
 			Node response = node.createChild(name).build();
@@ -93,60 +117,34 @@ public class SnmpNode {
 			});
 			response.createChild("remove").setAction(act).build().setSerializable(false);
 			response.setAttribute("restoreType", new Value("walk"));
-			link.mibUse.add(true);
-			if (!link.mibnode.getAttribute("keep MIBs loaded").getBool())
-				try {
-					Thread.sleep(500);
-				} catch (InterruptedException e) {
-					LOGGER.debug("", e);
-				}
-			walk(response, new OID(oid));
+			link.acquireMibs();
+			int reps = (maxReps != null) ? maxReps.getNumber().intValue() : Walker.DEFAULT_MAX_REPETITIONS;
+			int cursors = (parallel != null) ? parallel.getNumber().intValue() : 1;
+			new Walker(SnmpNode.this, response, new OID(oid), reps, cursors).start();
 		}
 	}
 
-	private void walk(final Node response, final OID oid) {
-		PDU pdu = new PDU();
-		pdu.add(new VariableBinding(oid));
-		pdu.setType(PDU.GETNEXT);
-		ResponseListener listener = new ResponseListener() {
-			public void onResponse(ResponseEvent event) {
-				LOGGER.trace("Received response PDU is: " + event.getResponse());
-				LOGGER.trace("Received response PDU Error is: " + event.getError());
-				LOGGER.trace("Received response PDU Peer Address is: " + event.getPeerAddress());
-				((Snmp) event.getSource()).cancel(event.getRequest(), this);
-				// LOGGER.debug("(Walking) Received response PDU is:
-				// "+event.getResponse());
-				if (event.getResponse() != null && !event.getResponse().get(0).isException()) {
-					OID noid = event.getResponse().get(0).getOid();
-					String val = event.getResponse().getVariable(noid).toString();
-					String noidname = link.parseOid(noid);
-					NodeBuilder builder = response.createChild(noidname);
-					builder.setValueType(ValueType.STRING);
-					builder.setValue(new Value(val));
-					Node vnode = builder.build();
-					vnode.setAttribute("oid", new Value(noid.toString()));
-					vnode.setAttribute("syntax", new Value(event.getResponse().getVariable(noid).getSyntax()));
-					createOidActions(vnode);
-					link.setupOID(vnode, root);
-					walk(response, noid);
-				} else {
-					link.mibUse.remove();
+	void addWalkResult(Node response, VariableBinding vb) {
+		final OID noid = vb.getOid();
+		String val = vb.getVariable().toString();
+		boolean resolved = link.mibsReady();
+		String noidname = link.parseOid(noid);
+		NodeBuilder builder = response.createChild(noidname);
+		builder.setValueType(ValueType.STRING);
+		builder.setValue(new Value(val));
+		final Node vnode = builder.build();
+		if (!resolved) {
+			// named by its dotted OID for now, show the MIB name once known
+			link.whenMibsReady(vnode, new Runnable() {
+				public void run() {
+					vnode.setDisplayName(link.parseOid(noid));
 				}
-			}
-		};
-
-		try {
-			LOGGER.trace("sending getnext");
-			LOGGER.trace("sending pdu: " + pdu + "   to target: " + root.target);
-			if (root.target != null)
-				snmp.send(pdu, root.target, null, listener);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			// e.printStackTrace();
-			LOGGER.error("error during walk");
-			LOGGER.debug("error:", e);
-			link.mibUse.remove();
+			});
 		}
+		vnode.setAttribute("oid", new Value(noid.toString()));
+		vnode.setAttribute("syntax", new Value(vb.getVariable().getSyntax()));
+		createOidActions(vnode);
+		link.setupOID(vnode, root);
 	}
 
 	class AddFolderHandler implements Handler<ActionResult> {
@@ -214,85 +212,75 @@ public class SnmpNode {
 		public void handle(ActionResult event) {
 			final String name = event.getParameter("Name", ValueType.STRING).getString();
 			String oid = event.getParameter("OID", ValueType.STRING).getString();
-			addOid(name, oid, node);
+			addOid(name, oid, node, event);
 		}
 	}
 
-	private void addOid(String name, String oid, Node fnode) {
+	/**
+	 * Adds an OID node with default settings to this node.
+	 */
+	void addOid(String name, String oid) {
+		addOid(name, oid, node, null);
+	}
+
+	private void addOid(String name, String oid, Node fnode, ActionResult event) {
 		if (oid.charAt(0) == '.')
 			oid = oid.substring(1);
 		NodeBuilder builder = fnode.createChild(name);
 		builder.setValueType(ValueType.STRING);
 		Node response = builder.build();
 		response.setAttribute("oid", new Value(oid));
+		for (String param: new String[] {"Deadband", "Deadband Mode", "Heartbeat", "Counter Mode"}) {
+			Value value = (event != null) ? event.getParameter(param) : null;
+			if (value != null) response.setAttribute(param, value);
+		}
 		createOidActions(response);
 		link.setupOID(response, root);
 	}
 
-	void sendGetRequest(final Node response) {
-		if (root.target == null)
-			return;
-		PDU pdu;
-		if (root.getVersion() == SnmpVersion.v3) {
-			ScopedPDU spdu = new ScopedPDU();
-			OctetString contextEngineId = AgentNode
-					.createOctetString(root.node.getAttribute("Context Engine").getString());
-			OctetString contextName = AgentNode.createOctetString(root.node.getAttribute("Context Name").getString());
-			if (contextEngineId.length() > 0) {
-				spdu.setContextEngineID(contextEngineId);
-			}
-			if (contextName.length() > 0) {
-				spdu.setContextName(contextName);
-			}
-			pdu = spdu;
-		} else {
-			pdu = new PDU();
+	void setOidValue(Node response, Variable var) {
+		ValueType vt;
+		Value val;
+		int syntax = var.getSyntax();
+		switch (syntax) {
+		case (SMIConstants.SYNTAX_COUNTER64):
+			vt = ValueType.NUMBER;
+			long counter = var.toLong();
+			// Counter64 is unsigned
+			val = (counter >= 0) ? new Value(counter) : new Value(BigInteger.valueOf(counter).add(TWO_TO_64));
+			break;
+		case (SMIConstants.SYNTAX_COUNTER32):
+		case (SMIConstants.SYNTAX_GAUGE32):
+		case (SMIConstants.SYNTAX_INTEGER):
+			vt = ValueType.NUMBER;
+			val = new Value(var.toLong());
+			break;
+		default:
+			vt = ValueType.STRING;
+			val = new Value(var.toString());
 		}
-		final String oid = response.getAttribute("oid").getString();
-		pdu.add(new VariableBinding(new OID(oid)));
-		pdu.setType(PDU.GET);
-		ResponseListener listener = new ResponseListener() {
-			public void onResponse(ResponseEvent event) {
-				LOGGER.debug("Received response PDU is: " + event.getResponse());
-				LOGGER.debug("Received response PDU Error is: " + event.getError());
-				LOGGER.debug("Received response PDU Peer Address is: " + event.getPeerAddress());
-				((Snmp) event.getSource()).cancel(event.getRequest(), this);
-				// LOGGER.debug("Received response PDU is:
-				// "+event.getResponse());
-				Value val = null;
-				ValueType vt = response.getValueType();
-				if (event.getResponse() != null) {
-					Variable var = event.getResponse().getVariable(new OID(oid));
-					int syntax = var.getSyntax();
-					switch (syntax) {
-					case (SMIConstants.SYNTAX_COUNTER32):
-					case (SMIConstants.SYNTAX_COUNTER64):
-					case (SMIConstants.SYNTAX_GAUGE32):
-					case (SMIConstants.SYNTAX_INTEGER):
-						vt = ValueType.NUMBER;
-						val = new Value(var.toLong());
-						break;
-					default:
-						vt = ValueType.STRING;
-						val = new Value(var.toString());
-					}
-					response.setAttribute("syntax", new Value(syntax));
-				}
-				if (vt != null && !vt.equals(response.getValueType())) {
-					response.setValueType(vt);
-				}
-				response.setValue(val);
-			}
-		};
-		try {
-			LOGGER.debug("sending pdu: " + pdu + "   to target: " + root.target);
-			if (root.target != null)
-				snmp.send(pdu, root.target, null, listener);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			// e.printStackTrace();
-			LOGGER.error("error:", e);
+		Value known = response.getAttribute("syntax");
+		if (known == null || known.getNumber().intValue() != syntax) {
+			response.setAttribute("syntax", new Value(syntax));
 		}
+		if (!vt.equals(response.getValueType())) {
+			response.setValueType(vt);
+		}
+		response.setValue(val);
+	}
+
+	/**
+	 * Publishes the per second rate computed from a counter.
+	 */
+	void setRateValue(Node response, int syntax, double rate) {
+		Value known = response.getAttribute("syntax");
+		if (known == null || known.getNumber().intValue() != syntax) {
+			response.setAttribute("syntax", new Value(syntax));
+		}
+		if (!ValueType.NUMBER.equals(response.getValueType())) {
+			response.setValueType(ValueType.NUMBER);
+		}
+		response.setValue(new Value(rate));
 	}
 
 	void createOidActions(Node valnode) {
@@ -305,10 +293,28 @@ public class SnmpNode {
 		act = new Action(Permission.READ, new EditOidHandler(valnode));
 		act.addParameter(new Parameter("Name", ValueType.STRING, new Value(valnode.getName())));
 		act.addParameter(new Parameter("OID", ValueType.STRING, valnode.getAttribute("oid")));
+		addPublishParameters(act, valnode);
 		valnode.createChild("edit").setAction(act).build().setSerializable(false);
 
 	}
 
+	/**
+	 * Adds the publishing settings of an OID node, with the current
+	 * settings of valnode, if given, as defaults.
+	 */
+	private static void addPublishParameters(Action act, Node valnode) {
+		Value deadband = (valnode != null) ? valnode.getAttribute("Deadband") : null;
+		Value mode = (valnode != null) ? valnode.getAttribute("Deadband Mode") : null;
+		Value heartbeat = (valnode != null) ? valnode.getAttribute("Heartbeat") : null;
+		Value counterMode = (valnode != null) ? valnode.getAttribute("Counter Mode") : null;
+		act.addParameter(new Parameter("Deadband", ValueType.NUMBER, (deadband != null) ? deadband : new Value(0)));
+		act.addParameter(new Parameter("Deadband Mode", ValueType.makeEnum(PolledOid.ABSOLUTE, PolledOid.PERCENT),
+				(mode != null) ? mode : new Value(PolledOid.ABSOLUTE)));
+		act.addParameter(new Parameter("Heartbeat", ValueType.NUMBER, (heartbeat != null) ? heartbeat : new Value(0)));
+		act.addParameter(new Parameter("Counter Mode", ValueType.makeEnum(PolledOid.MODE_AGENT, PolledOid.MODE_RAW, PolledOid.MODE_RATE),
+				(counterMode != null) ? counterMode : new Value(PolledOid.MODE_AGENT)));
+	}
+
 	class SetHandler implements Handler<ValuePair> {
 		private Node vnode;
 
@@ -319,6 +325,7 @@ public class SnmpNode {
 		public void handle(ValuePair event) {
 			if (!event.isFromExternalSource())
 				return;
+			root.ensureSetup();
 			PDU pdu = new PDU();
 			Value oid = vnode.getAttribute("oid");
 			Value syntax = vnode.getAttribute("syntax");
@@ -347,7 +354,7 @@ public class SnmpNode {
 			try {
 				LOGGER.info("sending pdu: " + pdu + "   to target: " + root.target);
 				if (root.target != null)
-					snmp.send(pdu, root.target, null, null);
+					dispatcher.send(pdu, root.target, SET_RESULT);
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				// e.printStackTrace();
@@ -369,7 +376,7 @@ public class SnmpNode {
 			String oid = event.getParameter("OID", ValueType.STRING).getString();
 			Node pnode = vnode.getParent();
 			removeOid(vnode);
-			addOid(name, oid, pnode);
+			addOid(name, oid, pnode, event);
 		}
 	}
 
@@ -387,6 +394,7 @@ public class SnmpNode {
 	}
 
 	private void removeOid(Node toRemove) {
+		link.handleUnsub(root, toRemove);
 		toRemove.clearChildren();
 		toRemove.getParent().removeChild(toRemove);
 	}
@@ -395,6 +403,8 @@ public class SnmpNode {
 		if (node.getChildren() == null)
 			return;
 		for (Node child : node.getChildren().values()) {
+			// created by the agent itself
+			if (root == this && child.getName().equals("METRICS")) continue;
 			Value restoreType = child.getAttribute("restoreType");
 			if (restoreType != null && restoreType.getString().equals("folder")) {
 				SnmpNode sn = new SnmpNode(link, child, root);
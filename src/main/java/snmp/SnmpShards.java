@@ -0,0 +1,120 @@
+package snmp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.MessageDispatcher;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.Snmp;
+import org.snmp4j.TransportMapping;
+import org.snmp4j.mp.MPv1;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.mp.MPv3;
+import org.snmp4j.security.USM;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+import org.snmp4j.util.MultiThreadedMessageDispatcher;
+import org.snmp4j.util.ThreadPool;
+
+/**
+ * The outbound Snmp sessions used for polling, walks and SETs, each on its
+ * own UDP socket. Agents are spread over them by consistent hashing of the
+ * agent name, so adding a transport only moves a share of the agents. With
+ * more than one dispatcher thread, response decoding, USM decryption and
+ * the response callbacks of a session run on a pool rather than on its
+ * listen thread. With the NIO transport, the transport decodes on threads
+ * of its own instead. All sessions share one USM.
+ */
+class SnmpShards {
+	static private final Logger LOGGER;
+	static {
+		LOGGER = LoggerFactory.getLogger(SnmpShards.class);
+	}
+
+	static final int DEFAULT_TRANSPORTS = 1;
+	static final int DEFAULT_DISPATCHER_THREADS = 2;
+	private static final int POINTS_PER_SHARD = 64;
+
+	private final List<ResponseDispatcher> shards = new ArrayList<ResponseDispatcher>();
+	private final List<ThreadPool> pools = new ArrayList<ThreadPool>();
+	private final TreeMap<Integer, ResponseDispatcher> ring = new TreeMap<Integer, ResponseDispatcher>();
+
+	/**
+	 * @param transports number of sessions, at least 1
+	 * @param threads dispatcher threads per session, 1 to dispatch on the listen thread
+	 * @param receiveBufferKB socket receive buffer size, 0 for the system default
+	 * @param nio use NioUdpTransportMapping rather than DefaultUdpTransportMapping
+	 */
+	SnmpShards(int transports, int threads, int receiveBufferKB, boolean nio, USM usm) throws IOException {
+		transports = Math.max(1, transports);
+		for (int i = 0; i < transports; i++) {
+			TransportMapping<UdpAddress> transport;
+			if (nio) {
+				NioUdpTransportMapping nioTransport = new NioUdpTransportMapping(null, (threads > 1) ? threads : 0);
+				if (receiveBufferKB > 0) nioTransport.setReceiveBufferSize(receiveBufferKB * 1024);
+				transport = nioTransport;
+			} else {
+				DefaultUdpTransportMapping udpTransport = new DefaultUdpTransportMapping();
+				if (receiveBufferKB > 0) udpTransport.setReceiveBufferSize(receiveBufferKB * 1024);
+				transport = udpTransport;
+			}
+			MessageDispatcher disp = new MessageDispatcherImpl();
+			disp.addMessageProcessingModel(new MPv1());
+			disp.addMessageProcessingModel(new MPv2c());
+			disp.addMessageProcessingModel(new MPv3(usm));
+			if (threads > 1 && !nio) {
+				ThreadPool pool = ThreadPool.create("snmp-dispatch-" + i, threads);
+				pools.add(pool);
+				disp = new MultiThreadedMessageDispatcher(pool, disp);
+			}
+			ResponseDispatcher shard = new ResponseDispatcher(new Snmp(disp, transport));
+			shards.add(shard);
+			for (int p = 0; p < POINTS_PER_SHARD; p++) {
+				ring.put(hash(i + "#" + p), shard);
+			}
+		}
+	}
+
+	void listen() throws IOException {
+		for (ResponseDispatcher shard: shards) {
+			shard.getSnmp().listen();
+		}
+	}
+
+	/**
+	 * The session for the agent with the given name.
+	 */
+	ResponseDispatcher get(String agentName) {
+		Map.Entry<Integer, ResponseDispatcher> entry = ring.ceilingEntry(hash(agentName));
+		if (entry == null) entry = ring.firstEntry();
+		return entry.getValue();
+	}
+
+	void close() {
+		for (ResponseDispatcher shard: shards) {
+			try {
+				shard.getSnmp().close();
+			} catch (IOException e) {
+				LOGGER.debug("error closing snmp session", e);
+			}
+		}
+		for (ThreadPool pool: pools) {
+			pool.cancel();
+		}
+	}
+
+	/**
+	 * String hash with its bits spread, so that similar names land on
+	 * different parts of the ring.
+	 */
+	private static int hash(String key) {
+		int h = key.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+}
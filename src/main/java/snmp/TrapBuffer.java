@@ -0,0 +1,191 @@
+package snmp;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+import org.snmp4j.PDU;
+import org.snmp4j.PDUv1;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Fixed-capacity ring buffer of the most recent traps of one agent. Traps
+ * are kept as received (time, trap OID, the PDU SNMP4J decoded and the
+ * number of duplicates suppressed before it), so appending allocates
+ * nothing; names and JSON are only built when the history is queried.
+ */
+class TrapBuffer {
+
+	static final int DEFAULT_CAPACITY = 1000;
+	static final OID SNMP_TRAP_OID = new OID("1.3.6.1.6.3.1.1.4.1.0");
+	private static final OID SNMP_TRAPS = new OID("1.3.6.1.6.3.1.1.5");
+	private static final String[] TIME_FORMATS = {
+		"yyyy-MM-dd'T'HH:mm:ss.SSSXXX", "yyyy-MM-dd'T'HH:mm:ssXXX",
+		"yyyy-MM-dd'T'HH:mm:ss.SSS", "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd"
+	};
+
+	private long[] times;
+	private OID[] trapOids;
+	private PDU[] pdus;
+	private int[] suppressed;
+	private int next = 0;
+	private int size = 0;
+
+	TrapBuffer(int capacity) {
+		allocate(Math.max(1, capacity));
+	}
+
+	private void allocate(int capacity) {
+		times = new long[capacity];
+		trapOids = new OID[capacity];
+		pdus = new PDU[capacity];
+		suppressed = new int[capacity];
+		next = 0;
+		size = 0;
+	}
+
+	synchronized void add(long time, OID trapOid, PDU pdu, int suppressedCount) {
+		times[next] = time;
+		trapOids[next] = trapOid;
+		pdus[next] = pdu;
+		suppressed[next] = suppressedCount;
+		next = (next + 1) % times.length;
+		if (size < times.length) size++;
+	}
+
+	synchronized void clear() {
+		allocate(times.length);
+	}
+
+	synchronized int capacity() {
+		return times.length;
+	}
+
+	/**
+	 * Changes the capacity, keeping the most recent traps that still fit.
+	 */
+	synchronized void resize(int capacity) {
+		capacity = Math.max(1, capacity);
+		if (capacity == times.length) return;
+		long[] oldTimes = times;
+		OID[] oldOids = trapOids;
+		PDU[] oldPdus = pdus;
+		int[] oldSuppressed = suppressed;
+		int oldNext = next;
+		int keep = Math.min(size, capacity);
+		allocate(capacity);
+		for (int i = keep; i > 0; i--) {
+			int j = (oldNext - i + oldTimes.length) % oldTimes.length;
+			add(oldTimes[j], oldOids[j], oldPdus[j], oldSuppressed[j]);
+		}
+	}
+
+	/**
+	 * Visits the buffered traps, oldest first, that were received within
+	 * [from, to] and whose trap OID starts with the given prefix (any trap if
+	 * the prefix is null). The buffer is copied under the lock, so the
+	 * visitor may take its time.
+	 */
+	void query(long from, long to, OID prefix, Visitor visitor) {
+		long[] t;
+		OID[] o;
+		PDU[] p;
+		int[] s;
+		int n;
+		synchronized (this) {
+			n = size;
+			t = new long[n];
+			o = new OID[n];
+			p = new PDU[n];
+			s = new int[n];
+			for (int i = 0; i < n; i++) {
+				int j = (next - n + i + times.length) % times.length;
+				t[i] = times[j];
+				o[i] = trapOids[j];
+				p[i] = pdus[j];
+				s[i] = suppressed[j];
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			if (t[i] < from || t[i] > to) continue;
+			if (prefix != null && (o[i] == null || !o[i].startsWith(prefix))) continue;
+			visitor.visit(t[i], o[i], p[i], s[i]);
+		}
+	}
+
+	/**
+	 * Visits the most recent trap, if there is one.
+	 */
+	void latest(Visitor visitor) {
+		long t;
+		OID o;
+		PDU p;
+		int s;
+		synchronized (this) {
+			if (size == 0) return;
+			int j = (next - 1 + times.length) % times.length;
+			t = times[j];
+			o = trapOids[j];
+			p = pdus[j];
+			s = suppressed[j];
+		}
+		visitor.visit(t, o, p, s);
+	}
+
+	interface Visitor {
+		void visit(long time, OID trapOid, PDU pdu, int suppressed);
+	}
+
+	/**
+	 * Returns the notification OID of a trap: snmpTrapOID.0 for v2c/v3 traps,
+	 * and the RFC 3584 translation of the generic/specific trap for v1 traps.
+	 */
+	static OID trapOid(PDU pdu) {
+		if (pdu instanceof PDUv1) {
+			PDUv1 v1 = (PDUv1) pdu;
+			if (v1.getGenericTrap() == PDUv1.ENTERPRISE_SPECIFIC) {
+				OID oid = new OID(v1.getEnterprise());
+				oid.append(0);
+				oid.append(v1.getSpecificTrap());
+				return oid;
+			}
+			OID oid = new OID(SNMP_TRAPS);
+			oid.append(v1.getGenericTrap() + 1);
+			return oid;
+		}
+		for (VariableBinding vb: pdu.toArray()) {
+			if (SNMP_TRAP_OID.equals(vb.getOid())) {
+				Variable v = vb.getVariable();
+				return (v instanceof OID) ? (OID) v : null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Parses a DSA time range ("start/end") into millisecond bounds. A missing
+	 * or unparsable range matches all times.
+	 */
+	static long[] parseTimeRange(String range) {
+		long[] bounds = {Long.MIN_VALUE, Long.MAX_VALUE};
+		if (range == null || range.trim().isEmpty()) return bounds;
+		String[] parts = range.split("/");
+		if (parts.length > 0) bounds[0] = parseTime(parts[0], Long.MIN_VALUE);
+		if (parts.length > 1) bounds[1] = parseTime(parts[1], Long.MAX_VALUE);
+		return bounds;
+	}
+
+	private static long parseTime(String s, long def) {
+		s = s.trim();
+		for (String format: TIME_FORMATS) {
+			try {
+				return new SimpleDateFormat(format).parse(s).getTime();
+			} catch (ParseException e) {
+				// try the next format
+			}
+		}
+		return def;
+	}
+
+}
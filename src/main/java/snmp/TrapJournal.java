@@ -0,0 +1,457 @@
+package snmp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.PDU;
+import org.snmp4j.PDUv1;
+import org.snmp4j.ScopedPDU;
+import org.snmp4j.asn1.BERInputStream;
+import org.snmp4j.smi.OID;
+
+/**
+ * Append-only journal of received traps, kept as a series of segment files.
+ * Appending only queues the trap; a single writer thread encodes queued
+ * traps (as BER, the way they came off the wire) and writes them in
+ * batches, starting a new segment when the current one is full and deleting
+ * the oldest beyond the retention count. Each segment has a small index -
+ * its time span, the source addresses in it and a sparse offset index - so
+ * queries skip whole segments, seek within the rest, and stream records
+ * from disk instead of loading segments into memory.
+ */
+class TrapJournal {
+	static private final Logger LOGGER;
+	static {
+		LOGGER = LoggerFactory.getLogger(TrapJournal.class);
+	}
+
+	static final int DEFAULT_SEGMENT_MB = 8;
+	static final int DEFAULT_SEGMENTS = 8;
+	private static final int QUEUE_SIZE = 10000;
+	private static final int BATCH_SIZE = 256;
+	private static final int INDEX_EVERY = 256;
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final byte KIND_PDU = 0;
+	private static final byte KIND_V1 = 1;
+	private static final byte KIND_SCOPED = 2;
+
+	private final File dir;
+	private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(QUEUE_SIZE);
+	private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread writer;
+	private volatile long segmentBytes;
+	private volatile int maxSegments;
+	private volatile boolean running = true;
+
+	// only touched by the writer thread
+	private Segment current;
+	private DataOutputStream out;
+	private final ByteArrayOutputStream recordBuf = new ByteArrayOutputStream(512);
+	private final ByteArrayOutputStream pduBuf = new ByteArrayOutputStream(512);
+
+	TrapJournal(File dir, int segmentMB, int segments) {
+		this.dir = dir;
+		setLimits(segmentMB, segments);
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "snmp-trap-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Sets the segment size and the number of segments kept. 0 segments
+	 * stops journaling new traps; existing segments can still be queried.
+	 */
+	void setLimits(int segmentMB, int segments) {
+		segmentBytes = Math.max(1, segmentMB) * 1024L * 1024L;
+		maxSegments = Math.max(0, segments);
+	}
+
+	long dropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Queues a trap for the journal. Never blocks; a trap arriving while the
+	 * queue is full is dropped and counted.
+	 */
+	void append(long time, InetAddress source, PDU pdu, int suppressed) {
+		if (maxSegments == 0 || !running) return;
+		if (!queue.offer(new Record(time, source, pdu, suppressed))) dropped.incrementAndGet();
+	}
+
+	void stop() {
+		running = false;
+		writer.interrupt();
+	}
+
+	private void writeLoop() {
+		loadSegments();
+		List<Record> batch = new ArrayList<Record>(BATCH_SIZE);
+		while (running) {
+			try {
+				Record first = queue.poll(1, TimeUnit.SECONDS);
+				if (first == null) continue;
+				batch.add(first);
+				queue.drainTo(batch, BATCH_SIZE - 1);
+				write(batch);
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException e) {
+				LOGGER.error("error writing trap journal");
+				LOGGER.debug("", e);
+				closeCurrent();
+			} finally {
+				batch.clear();
+			}
+		}
+		// write whatever was queued before stopping
+		queue.drainTo(batch);
+		try {
+			write(batch);
+		} catch (IOException e) {
+			LOGGER.debug("", e);
+		}
+		closeCurrent();
+	}
+
+	private void write(List<Record> batch) throws IOException {
+		if (batch.isEmpty()) return;
+		for (Record r: batch) {
+			byte[] bytes = encode(r);
+			if (current == null || current.pending + bytes.length > segmentBytes) roll();
+			current.add(r.time, r.source, bytes.length);
+			out.write(bytes);
+		}
+		out.flush();
+		// records become visible to queries only once they are on disk
+		current.length = current.pending;
+	}
+
+	private byte[] encode(Record r) throws IOException {
+		pduBuf.reset();
+		r.pdu.encodeBER(pduBuf);
+		byte[] addr = r.source.getAddress();
+		recordBuf.reset();
+		DataOutputStream dos = new DataOutputStream(recordBuf);
+		dos.writeInt(8 + 1 + addr.length + 4 + 1 + pduBuf.size());
+		dos.writeLong(r.time);
+		dos.writeByte(addr.length);
+		dos.write(addr);
+		dos.writeInt(r.suppressed);
+		dos.writeByte(kind(r.pdu));
+		pduBuf.writeTo(dos);
+		dos.flush();
+		return recordBuf.toByteArray();
+	}
+
+	private static byte kind(PDU pdu) {
+		if (pdu instanceof PDUv1) return KIND_V1;
+		if (pdu instanceof ScopedPDU) return KIND_SCOPED;
+		return KIND_PDU;
+	}
+
+	private void roll() throws IOException {
+		closeCurrent();
+		if (!dir.exists() && !dir.mkdirs()) throw new IOException("error making trap journal directory");
+		long id = System.currentTimeMillis();
+		if (!segments.isEmpty()) id = Math.max(id, segments.get(segments.size() - 1).id + 1);
+		current = new Segment(dir, id);
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(current.file), 64 * 1024));
+		segments.add(current);
+		while (segments.size() > Math.max(1, maxSegments)) {
+			Segment oldest = segments.remove(0);
+			oldest.delete();
+		}
+	}
+
+	private void closeCurrent() {
+		if (current == null) return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			LOGGER.debug("", e);
+		}
+		current.saveIndex();
+		current = null;
+		out = null;
+	}
+
+	/**
+	 * Picks up the segments left by earlier runs, rebuilding indexes that are
+	 * missing or out of date (e.g. after a crash).
+	 */
+	private void loadSegments() {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		List<Segment> found = new ArrayList<Segment>();
+		for (File f: files) {
+			String name = f.getName();
+			if (!name.endsWith(SEGMENT_SUFFIX)) continue;
+			try {
+				long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+				Segment seg = new Segment(dir, id);
+				if (!seg.loadIndex()) {
+					seg.rebuildIndex();
+					seg.saveIndex();
+				}
+				found.add(seg);
+			} catch (NumberFormatException e) {
+				// not a segment
+			} catch (IOException e) {
+				LOGGER.debug("error loading trap journal segment " + name, e);
+			}
+		}
+		Collections.sort(found);
+		while (maxSegments > 0 && found.size() > maxSegments) {
+			found.remove(0).delete();
+		}
+		segments.addAll(0, found);
+	}
+
+	/**
+	 * Visits the journaled traps, oldest first, received within [from, to]
+	 * from one of the given sources (any source if null) and whose trap OID
+	 * starts with the given prefix (any trap if null).
+	 */
+	void query(long from, long to, Set<InetAddress> sources, OID prefix, Visitor visitor) {
+		for (Segment seg: segments) {
+			if (seg.length == 0 || seg.maxTime < from || seg.minTime > to) continue;
+			if (sources != null && Collections.disjoint(sources, seg.sources)) continue;
+			try {
+				seg.scan(from, to, sources, prefix, visitor);
+			} catch (IOException e) {
+				LOGGER.debug("error reading trap journal segment " + seg.file.getName(), e);
+			}
+		}
+	}
+
+	interface Visitor {
+		void visit(long time, InetAddress source, OID trapOid, PDU pdu, int suppressed);
+	}
+
+	private static class Record {
+		final long time;
+		final InetAddress source;
+		final PDU pdu;
+		final int suppressed;
+
+		Record(long time, InetAddress source, PDU pdu, int suppressed) {
+			this.time = time;
+			this.source = source;
+			this.pdu = pdu;
+			this.suppressed = suppressed;
+		}
+	}
+
+	/**
+	 * One segment file with its index. The sparse index holds pairs of
+	 * (offset, latest time before offset), so a query for traps after some
+	 * time can start at the last entry whose latest time is earlier.
+	 */
+	private static class Segment implements Comparable<Segment> {
+		final long id;
+		final File file;
+		final File indexFile;
+		final Set<InetAddress> sources = Collections.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+		private final List<long[]> sparse = new CopyOnWriteArrayList<long[]>();
+		volatile long length = 0;
+		volatile long minTime = Long.MAX_VALUE;
+		volatile long maxTime = Long.MIN_VALUE;
+		private long pending = 0;
+		private int records = 0;
+
+		Segment(File dir, long id) {
+			this.id = id;
+			this.file = new File(dir, id + SEGMENT_SUFFIX);
+			this.indexFile = new File(dir, id + INDEX_SUFFIX);
+		}
+
+		void add(long time, InetAddress source, int size) {
+			if (records % INDEX_EVERY == 0) sparse.add(new long[] {pending, maxTime});
+			records++;
+			sources.add(source);
+			if (time < minTime) minTime = time;
+			if (time > maxTime) maxTime = time;
+			pending += size;
+		}
+
+		long seek(long from) {
+			long offset = 0;
+			for (long[] entry: sparse) {
+				if (entry[1] >= from) break;
+				offset = entry[0];
+			}
+			return offset;
+		}
+
+		void scan(long from, long to, Set<InetAddress> wanted, OID prefix, Visitor visitor) throws IOException {
+			long end = length;
+			long pos = seek(from);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+			try {
+				skipFully(in, pos);
+				while (pos + 4 <= end) {
+					int len = in.readInt();
+					if (pos + 4 + len > end) break;
+					pos += 4 + len;
+					long time = in.readLong();
+					byte[] addr = new byte[in.readUnsignedByte()];
+					in.readFully(addr);
+					int suppressed = in.readInt();
+					byte kind = in.readByte();
+					int pduLen = len - (8 + 1 + addr.length + 4 + 1);
+					InetAddress source = InetAddress.getByAddress(addr);
+					if (time < from || time > to || (wanted != null && !wanted.contains(source))) {
+						skipFully(in, pduLen);
+						continue;
+					}
+					byte[] ber = new byte[pduLen];
+					in.readFully(ber);
+					PDU pdu = (kind == KIND_V1) ? new PDUv1() : (kind == KIND_SCOPED) ? new ScopedPDU() : new PDU();
+					pdu.decodeBER(new BERInputStream(ByteBuffer.wrap(ber)));
+					OID trapOid = TrapBuffer.trapOid(pdu);
+					if (prefix != null && (trapOid == null || !trapOid.startsWith(prefix))) continue;
+					visitor.visit(time, source, trapOid, pdu, suppressed);
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		private static void skipFully(DataInputStream in, long n) throws IOException {
+			while (n > 0) {
+				int skipped = in.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+				if (skipped <= 0) throw new EOFException();
+				n -= skipped;
+			}
+		}
+
+		/**
+		 * Rebuilds the index by reading the record headers, stopping at the
+		 * first incomplete record.
+		 */
+		void rebuildIndex() throws IOException {
+			long fileLength = file.length();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+			try {
+				while (pending + 4 <= fileLength) {
+					int len = in.readInt();
+					if (len < 14 || pending + 4 + len > fileLength) break;
+					long time = in.readLong();
+					byte[] addr = new byte[in.readUnsignedByte()];
+					in.readFully(addr);
+					skipFully(in, len - 8 - 1 - addr.length);
+					add(time, InetAddress.getByAddress(addr), 4 + len);
+				}
+			} finally {
+				in.close();
+			}
+			length = pending;
+		}
+
+		void saveIndex() {
+			try {
+				DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+				try {
+					dos.writeLong(file.length());
+					dos.writeLong(length);
+					dos.writeInt(records);
+					dos.writeLong(minTime);
+					dos.writeLong(maxTime);
+					dos.writeInt(sources.size());
+					for (InetAddress source: sources) {
+						byte[] addr = source.getAddress();
+						dos.writeByte(addr.length);
+						dos.write(addr);
+					}
+					dos.writeInt(sparse.size());
+					for (long[] entry: sparse) {
+						dos.writeLong(entry[0]);
+						dos.writeLong(entry[1]);
+					}
+				} finally {
+					dos.close();
+				}
+			} catch (IOException e) {
+				LOGGER.debug("error saving trap journal index", e);
+			}
+		}
+
+		/**
+		 * Returns false if there is no index or it does not match the segment.
+		 */
+		boolean loadIndex() {
+			if (!indexFile.exists()) return false;
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+				try {
+					if (in.readLong() != file.length()) return false;
+					length = pending = in.readLong();
+					records = in.readInt();
+					minTime = in.readLong();
+					maxTime = in.readLong();
+					int n = in.readInt();
+					for (int i = 0; i < n; i++) {
+						byte[] addr = new byte[in.readUnsignedByte()];
+						in.readFully(addr);
+						sources.add(InetAddress.getByAddress(addr));
+					}
+					n = in.readInt();
+					for (int i = 0; i < n; i++) {
+						sparse.add(new long[] {in.readLong(), in.readLong()});
+					}
+					return true;
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				LOGGER.debug("error loading trap journal index", e);
+				sources.clear();
+				sparse.clear();
+				length = pending = 0;
+				records = 0;
+				minTime = Long.MAX_VALUE;
+				maxTime = Long.MIN_VALUE;
+				return false;
+			}
+		}
+
+		void delete() {
+			if (file.exists() && !file.delete()) LOGGER.error("error deleting trap journal segment " + file.getName());
+			if (indexFile.exists() && !indexFile.delete()) LOGGER.debug("error deleting trap journal index " + indexFile.getName());
+		}
+
+		public int compareTo(Segment o) {
+			return (id < o.id) ? -1 : (id == o.id) ? 0 : 1;
+		}
+	}
+
+}
@@ -0,0 +1,194 @@
+package snmp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.Objects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.PDU;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.UdpAddress;
+
+/**
+ * Staged handling of incoming traps. The transport thread only runs the
+ * suppression check and enqueues the received PDU; a pool of decode
+ * workers resolves OIDs and builds the published form, and a single
+ * publisher thread updates the nodes from a bounded queue per agent, so each
+ * agent sees its traps in the order they were decoded. Traps arriving while
+ * the decode queue is full, or while the queues of all their agents are
+ * full, are dropped and counted.
+ */
+class TrapPipeline implements CommandResponder {
+	static private final Logger LOGGER;
+	static {
+		LOGGER = LoggerFactory.getLogger(TrapPipeline.class);
+	}
+
+	static final int DEFAULT_THREADS = 2;
+	static final int DEFAULT_QUEUE_SIZE = 10000;
+	private static final long STATS_INTERVAL = 1000;
+	static final int AGENT_QUEUE_SIZE = 1000;
+
+	private final SnmpLink link;
+	private final ThreadPoolExecutor decoders;
+	private final ThreadPoolExecutor publisher;
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong suppressed = new AtomicLong();
+	private final AtomicLong published = new AtomicLong();
+	final TrapSuppressor suppressor = new TrapSuppressor();
+	private Node queueNode, receivedNode, droppedNode, suppressedNode, publishedNode, journalDroppedNode;
+	private ScheduledFuture<?> statsFuture;
+
+	TrapPipeline(SnmpLink link, int threads, int queueSize) {
+		this.link = link;
+		threads = Math.max(1, threads);
+		decoders = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new DaemonThreadFactory("snmp-trap-decode-"),
+				new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						dropped.incrementAndGet();
+					}
+				});
+		// holds at most one drain task per agent, the agent queues bound the rest
+		publisher = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("snmp-trap-publish-"));
+	}
+
+	void createStatsNodes(Node parent) {
+		Node stats = parent.getChild("TRAP PIPELINE");
+		if (stats == null) stats = parent.createChild("TRAP PIPELINE").build();
+		stats.setSerializable(false);
+		queueNode = stats.createChild("Queue Depth").setValueType(ValueType.NUMBER).setValue(new Value(0)).build();
+		receivedNode = stats.createChild("Received").setValueType(ValueType.NUMBER).setValue(new Value(0)).build();
+		droppedNode = stats.createChild("Dropped").setValueType(ValueType.NUMBER).setValue(new Value(0)).build();
+		suppressedNode = stats.createChild("Suppressed").setValueType(ValueType.NUMBER).setValue(new Value(0)).build();
+		publishedNode = stats.createChild("Published").setValueType(ValueType.NUMBER).setValue(new Value(0)).build();
+		journalDroppedNode = stats.createChild("Journal Dropped").setValueType(ValueType.NUMBER).setValue(new Value(0)).build();
+		statsFuture = Objects.getDaemonThreadPool().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				updateStats();
+			}
+		}, STATS_INTERVAL, STATS_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	private void updateStats() {
+		queueNode.setValue(new Value(decoders.getQueue().size()));
+		receivedNode.setValue(new Value(received.get()));
+		droppedNode.setValue(new Value(dropped.get()));
+		suppressedNode.setValue(new Value(suppressed.get()));
+		publishedNode.setValue(new Value(published.get()));
+		if (link.trapJournal != null) journalDroppedNode.setValue(new Value(link.trapJournal.dropped()));
+	}
+
+	void setThreads(int threads) {
+		threads = Math.max(1, threads);
+		if (threads > decoders.getMaximumPoolSize()) {
+			decoders.setMaximumPoolSize(threads);
+			decoders.setCorePoolSize(threads);
+		} else {
+			decoders.setCorePoolSize(threads);
+			decoders.setMaximumPoolSize(threads);
+		}
+	}
+
+	public void processPdu(CommandResponderEvent e) {
+		final PDU command = e.getPDU();
+		if (command != null && e.getPeerAddress() instanceof UdpAddress) {
+			received.incrementAndGet();
+			final UdpAddress from = (UdpAddress) e.getPeerAddress();
+			final long time = System.currentTimeMillis();
+			final OID trapOid = TrapBuffer.trapOid(command);
+			final int count = suppressor.check(from.getInetAddress(), trapOid, command, time);
+			if (count < 0) {
+				suppressed.incrementAndGet();
+			} else {
+				decoders.execute(new Runnable() {
+					public void run() {
+						try {
+							link.decodeTrap(command, from, time, trapOid, count);
+						} catch (RuntimeException ex) {
+							LOGGER.debug("error:", ex);
+						}
+					}
+				});
+			}
+		}
+		e.setProcessed(true);
+	}
+
+	/**
+	 * Queues an update of an agent's nodes for the publisher thread. Returns
+	 * false, dropping the update, if the agent's queue is full; the caller
+	 * never runs it itself.
+	 */
+	boolean publish(AgentQueue queue, Runnable update) {
+		if (!queue.updates.offer(update)) return false;
+		schedule(queue);
+		return true;
+	}
+
+	/**
+	 * Counts a decoded trap as published if it was queued for at least one
+	 * agent, otherwise as dropped.
+	 */
+	void countTrap(boolean queued) {
+		if (queued) {
+			published.incrementAndGet();
+		} else {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private void schedule(final AgentQueue queue) {
+		if (!queue.scheduled.compareAndSet(false, true)) return;
+		publisher.execute(new Runnable() {
+			public void run() {
+				drain(queue);
+			}
+		});
+	}
+
+	private void drain(AgentQueue queue) {
+		Runnable update;
+		while ((update = queue.updates.poll()) != null) {
+			try {
+				update.run();
+			} catch (RuntimeException ex) {
+				LOGGER.debug("error:", ex);
+			}
+		}
+		queue.scheduled.set(false);
+		// an update queued after the last poll but before the flag was cleared
+		if (!queue.updates.isEmpty()) schedule(queue);
+	}
+
+	/**
+	 * The updates of one agent's nodes waiting for the publisher thread, in
+	 * order. At most one drain of a queue is scheduled at a time.
+	 */
+	static class AgentQueue {
+		private final BlockingQueue<Runnable> updates = new ArrayBlockingQueue<Runnable>(AGENT_QUEUE_SIZE);
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	}
+
+	void stop() {
+		if (statsFuture != null) statsFuture.cancel(false);
+		decoders.shutdownNow();
+		publisher.shutdownNow();
+	}
+
+}
@@ -0,0 +1,181 @@
+package snmp;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.snmp4j.PDU;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Suppression stage in front of trap decoding. A trap is dropped if an
+ * identical one (same source, trap OID and key varbinds) was let through
+ * less than the dedup window ago, or if its source has used up its rate
+ * limit. Suppressed traps are counted against their key, or their source
+ * when only the rate limit is on, and the next trap let through for it
+ * reports the count. Both checks are off by default. The keys and sources
+ * tracked are capped, dropping the least recently seen, so a storm of
+ * distinct traps cannot grow them between sweeps.
+ */
+class TrapSuppressor {
+
+	private static final long SWEEP_MILLIS = 60000;
+	static final int MAX_ENTRIES = 10000;
+
+	private long window = 0;
+	private double rate = 0;
+	private OID[] keyOids = new OID[0];
+	private final Map<String, Entry> entries = boundedMap();
+	private final Map<InetAddress, Bucket> buckets = boundedMap();
+	private long lastSweep = 0;
+
+	/**
+	 * @param windowMillis dedup window, 0 disables deduplication
+	 * @param perSecond traps per second allowed from one source, 0 for no limit
+	 * @param keyVarbinds comma separated OID prefixes of the varbinds that make
+	 *        two traps distinct, e.g. ifIndex
+	 */
+	synchronized void configure(long windowMillis, double perSecond, String keyVarbinds) {
+		window = Math.max(0, windowMillis);
+		rate = Math.max(0, perSecond);
+		List<OID> oids = new ArrayList<OID>();
+		if (keyVarbinds != null) {
+			for (String s: keyVarbinds.split(",")) {
+				s = s.trim();
+				if (s.startsWith(".")) s = s.substring(1);
+				if (!s.isEmpty()) oids.add(new OID(s));
+			}
+		}
+		keyOids = oids.toArray(new OID[oids.size()]);
+		entries.clear();
+		buckets.clear();
+	}
+
+	/**
+	 * Returns -1 if the trap is suppressed, otherwise the number of traps
+	 * suppressed for its key since the last one let through.
+	 */
+	synchronized int check(InetAddress source, OID trapOid, PDU pdu, long now) {
+		if (window <= 0 && rate <= 0) return 0;
+		if (now - lastSweep > SWEEP_MILLIS) sweep(now);
+		// the key is only needed for deduplication
+		Entry entry = null;
+		if (window > 0) {
+			String key = key(source, trapOid, pdu);
+			entry = entries.get(key);
+			if (entry == null) {
+				entry = new Entry();
+				entries.put(key, entry);
+			}
+			entry.lastSeen = now;
+			if (entry.passed && now - entry.lastPassed < window) {
+				entry.suppressed++;
+				return -1;
+			}
+		}
+		Bucket bucket = null;
+		if (rate > 0) {
+			bucket = buckets.get(source);
+			if (bucket == null) {
+				bucket = new Bucket(rate, now);
+				buckets.put(source, bucket);
+			}
+			if (!bucket.take(rate, now)) {
+				if (entry != null) {
+					entry.suppressed++;
+				} else {
+					bucket.suppressed++;
+				}
+				return -1;
+			}
+		}
+		int suppressed;
+		if (entry != null) {
+			suppressed = entry.suppressed;
+			entry.suppressed = 0;
+			entry.passed = true;
+			entry.lastPassed = now;
+		} else {
+			suppressed = bucket.suppressed;
+			bucket.suppressed = 0;
+		}
+		return suppressed;
+	}
+
+	/**
+	 * A map in access order holding at most MAX_ENTRIES, the least recently
+	 * used one is dropped to make room.
+	 */
+	private static <K, V> Map<K, V> boundedMap() {
+		return new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > MAX_ENTRIES;
+			}
+		};
+	}
+
+	private String key(InetAddress source, OID trapOid, PDU pdu) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(source.getHostAddress()).append('|').append(trapOid);
+		if (keyOids.length > 0) {
+			for (VariableBinding vb: pdu.toArray()) {
+				for (OID prefix: keyOids) {
+					if (vb.getOid().startsWith(prefix)) {
+						sb.append('|').append(vb.getOid()).append('=').append(vb.getVariable());
+						break;
+					}
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private void sweep(long now) {
+		lastSweep = now;
+		long idle = Math.max(window, SWEEP_MILLIS);
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			if (now - it.next().lastSeen > idle) it.remove();
+		}
+		for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext();) {
+			if (now - it.next().last > idle) it.remove();
+		}
+	}
+
+	private static class Entry {
+		boolean passed = false;
+		long lastPassed;
+		long lastSeen;
+		int suppressed = 0;
+	}
+
+	/**
+	 * Token bucket holding up to one second's worth of traps.
+	 */
+	private static class Bucket {
+		double tokens;
+		long last;
+		// when there is no dedup entry to count against
+		int suppressed = 0;
+
+		Bucket(double rate, long now) {
+			tokens = Math.max(1, rate);
+			last = now;
+		}
+
+		boolean take(double rate, long now) {
+			tokens = Math.min(Math.max(1, rate), tokens + (now - last) * rate / 1000);
+			last = now;
+			if (tokens < 1) return false;
+			tokens -= 1;
+			return true;
+		}
+	}
+
+}
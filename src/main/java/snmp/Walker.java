@@ -0,0 +1,298 @@
+package snmp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.AbstractTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+import snmp.SnmpLink.SnmpVersion;
+
+/**
+ * Walks the subtree below one OID of an agent. v2c and v3 agents are walked
+ * with GETBULK, v1 agents with GETNEXT. The walk ends as soon as the agent
+ * returns an OID outside of the requested subtree.
+ *
+ * With more than one cursor, the subtree is first split at the level where it
+ * branches (the columns of a table) and each range is walked by its own
+ * cursor. Cursors run concurrently within the agent's request gate and their
+ * results are written to the walk folder in OID order.
+ */
+class Walker {
+	static private final Logger LOGGER;
+	static {
+		LOGGER = LoggerFactory.getLogger(Walker.class);
+	}
+
+	static final int DEFAULT_MAX_REPETITIONS = 25;
+	private static final OID WALK_ALL = new OID("0.0");
+	// how many single-child levels (e.g. table -> entry) to descend when splitting
+	private static final int MAX_SPLIT_DESCENT = 3;
+
+	private final SnmpNode owner;
+	private final AgentNode agent;
+	private final Node response;
+	private final OID rootOid;
+	private final boolean bounded;
+	private final int maxRepetitions;
+	private final int cursorCount;
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicBoolean completed = new AtomicBoolean(false);
+	private long startTime;
+
+	// split discovery state
+	private OID splitRoot;
+	private final List<OID> branches = new ArrayList<OID>();
+	private final List<VariableBinding> firstResults = new ArrayList<VariableBinding>();
+
+	private final List<Cursor> cursors = new ArrayList<Cursor>();
+	private int flushIndex = 0;
+
+	Walker(SnmpNode owner, Node response, OID rootOid, int maxRepetitions, int cursorCount) {
+		this.owner = owner;
+		this.agent = owner.root;
+		this.response = response;
+		this.rootOid = rootOid;
+		// the default walk OID "0.0" means the whole agent
+		this.bounded = !WALK_ALL.equals(rootOid);
+		this.maxRepetitions = Math.max(1, maxRepetitions);
+		this.cursorCount = bounded ? Math.max(1, cursorCount) : 1;
+	}
+
+	void start() {
+		agent.ensureSetup();
+		startTime = System.currentTimeMillis();
+		if (cursorCount > 1) {
+			splitRoot = rootOid;
+			discover(rootOid);
+		} else {
+			Cursor cursor = new Cursor(0, rootOid, null);
+			cursors.add(cursor);
+			cursor.request();
+		}
+	}
+
+	/**
+	 * Finds the first OID of the next branch below splitRoot, starting after
+	 * the given OID.
+	 */
+	private void discover(final OID from) {
+		final PDU pdu = agent.createPdu();
+		pdu.add(new VariableBinding(from));
+		pdu.setType(PDU.GETNEXT);
+		send(pdu, new ResponseDispatcher.Callback() {
+			public void onResponse(ResponseEvent event) {
+				agent.requestGate.release();
+				if (completed.get()) return;
+				PDU resp = event.getResponse();
+				VariableBinding vb = (resp != null && resp.getErrorStatus() == PDU.noError && resp.size() > 0) ? resp.get(0) : null;
+				if (vb == null || vb.isException() || !vb.getOid().startsWith(splitRoot)
+						|| vb.getOid().size() <= splitRoot.size()) {
+					startCursors();
+					return;
+				}
+				OID branch = new OID(vb.getOid().getValue(), 0, splitRoot.size() + 1);
+				branches.add(branch);
+				firstResults.add(vb);
+				if (branches.size() >= cursorCount) {
+					startCursors();
+				} else {
+					discover(nextBranch(branch));
+				}
+			}
+		});
+	}
+
+	private void startCursors() {
+		if (branches.size() == 1 && splitRoot.size() - rootOid.size() < MAX_SPLIT_DESCENT
+				&& firstResults.get(0).getOid().size() > branches.get(0).size()) {
+			// only one branch on this level, split one level further down
+			splitRoot = branches.get(0);
+			branches.clear();
+			firstResults.clear();
+			discover(splitRoot);
+			return;
+		}
+		if (branches.isEmpty()) {
+			done();
+			return;
+		}
+		synchronized (this) {
+			for (int i = 0; i < branches.size(); i++) {
+				OID end = (i + 1 < branches.size()) ? branches.get(i + 1) : null;
+				cursors.add(new Cursor(i, firstResults.get(i).getOid(), end));
+			}
+		}
+		for (int i = 0; i < cursors.size(); i++) {
+			Cursor cursor = cursors.get(i);
+			cursor.accept(firstResults.get(i));
+			cursor.request();
+		}
+	}
+
+	private static OID nextBranch(OID branch) {
+		int[] arcs = branch.getValue().clone();
+		arcs[arcs.length - 1]++;
+		return new OID(arcs);
+	}
+
+	private void send(final PDU pdu, final ResponseDispatcher.Callback callback) {
+		agent.requestGate.submit(new Runnable() {
+			public void run() {
+				if (completed.get()) {
+					// aborted while this request waited for a permit
+					agent.requestGate.release();
+					return;
+				}
+				try {
+					if (LOGGER.isTraceEnabled()) LOGGER.trace("sending pdu: " + pdu + "   to target: " + agent.target);
+					AbstractTarget target = agent.target;
+					if (target != null) {
+						requests.incrementAndGet();
+						agent.metrics.sent();
+						final AbstractTarget sentTo = target;
+						final long sentAt = System.nanoTime();
+						agent.dispatcher.send(pdu, target, new ResponseDispatcher.Callback() {
+							public void onResponse(ResponseEvent event) {
+								agent.metrics.completed(event, sentAt, sentTo);
+								callback.onResponse(event);
+							}
+						});
+						return;
+					}
+				} catch (IOException e) {
+					LOGGER.error("error during walk");
+					LOGGER.debug("error:", e);
+				}
+				agent.requestGate.release();
+				abort();
+			}
+		});
+	}
+
+	/**
+	 * Walks the range from its start OID up to, but not including, its end
+	 * OID (or the end of the walked subtree if end is null).
+	 */
+	private class Cursor implements ResponseDispatcher.Callback {
+		private final int index;
+		private final OID end;
+		private OID last;
+		private boolean finished = false;
+		private final List<VariableBinding> buffer = new ArrayList<VariableBinding>();
+
+		Cursor(int index, OID start, OID end) {
+			this.index = index;
+			this.end = end;
+			this.last = start;
+		}
+
+		void request() {
+			PDU pdu = agent.createPdu();
+			pdu.add(new VariableBinding(last));
+			if (agent.getVersion() == SnmpVersion.v1) {
+				pdu.setType(PDU.GETNEXT);
+			} else {
+				pdu.setType(PDU.GETBULK);
+				pdu.setNonRepeaters(0);
+				pdu.setMaxRepetitions(maxRepetitions);
+			}
+			send(pdu, this);
+		}
+
+		public void onResponse(ResponseEvent event) {
+			if (LOGGER.isTraceEnabled()) {
+				LOGGER.trace("Received response PDU is: " + event.getResponse());
+				LOGGER.trace("Received response PDU Error is: " + event.getError());
+				LOGGER.trace("Received response PDU Peer Address is: " + event.getPeerAddress());
+			}
+			agent.requestGate.release();
+			// the walk was aborted, drop what was still in flight
+			if (completed.get()) return;
+			PDU resp = event.getResponse();
+			if (resp == null || resp.getErrorStatus() != PDU.noError || resp.size() == 0) {
+				finish(this);
+				return;
+			}
+			for (VariableBinding vb: resp.toArray()) {
+				OID noid = vb.getOid();
+				if (vb.isException() || (bounded && !noid.startsWith(rootOid))
+						|| (end != null && noid.compareTo(end) >= 0) || noid.compareTo(last) <= 0) {
+					// end of MIB view, left the range, or an agent that does not increase its OIDs
+					finish(this);
+					return;
+				}
+				accept(vb);
+			}
+			request();
+		}
+
+		void accept(VariableBinding vb) {
+			last = vb.getOid();
+			synchronized (Walker.this) {
+				if (index == flushIndex) {
+					owner.addWalkResult(response, vb);
+				} else {
+					buffer.add(vb);
+				}
+			}
+		}
+	}
+
+	private void finish(Cursor cursor) {
+		boolean all;
+		synchronized (this) {
+			cursor.finished = true;
+			// write out buffered results of the following cursors, in order
+			while (flushIndex < cursors.size() && cursors.get(flushIndex).finished) {
+				flushIndex++;
+				if (flushIndex < cursors.size()) {
+					Cursor next = cursors.get(flushIndex);
+					for (VariableBinding vb: next.buffer) {
+						owner.addWalkResult(response, vb);
+					}
+					next.buffer.clear();
+				}
+			}
+			all = flushIndex >= cursors.size();
+		}
+		if (all) done();
+	}
+
+	private void abort() {
+		synchronized (this) {
+			// a request could not be sent, report what was walked so far
+			for (int i = flushIndex + 1; i < cursors.size(); i++) {
+				for (VariableBinding vb: cursors.get(i).buffer) {
+					owner.addWalkResult(response, vb);
+				}
+				cursors.get(i).buffer.clear();
+			}
+			for (Cursor cursor: cursors) {
+				cursor.finished = true;
+			}
+			flushIndex = cursors.size();
+		}
+		done();
+	}
+
+	private void done() {
+		if (!completed.compareAndSet(false, true)) return;
+		long duration = System.currentTimeMillis() - startTime;
+		response.setAttribute("Walk Duration", new Value(duration));
+		response.setAttribute("Walk Requests", new Value(requests.get()));
+		LOGGER.info("walk of " + rootOid + " took " + duration + " ms and " + requests.get() + " requests");
+		owner.link.releaseMibs();
+	}
+
+}
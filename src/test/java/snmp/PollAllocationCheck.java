@@ -0,0 +1,198 @@
+package snmp;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.MessageException;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.mp.StatusInformation;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.SMIConstants;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+/**
+ * Measures the bytes allocated per poll cycle on the sending thread and
+ * the thread handling the responses, against a responder on the loopback
+ * interface. "baseline" polls the way the link did before batching: one
+ * GET per OID, with the OID parsed from its attribute string, a listener
+ * per request and the debug messages built unconditionally. "batched" polls
+ * the way a poll batch does now: one reused GET for all OIDs, answered
+ * through the ResponseDispatcher to a reused callback. The DSLink values
+ * the old path created per response are left out, so the baseline is on
+ * the low side. Needs a HotSpot JVM for the per thread allocation counters.
+ * Run with the link's runtime classpath:
+ *
+ *   java -cp build/classes/main:build/classes/test:<snmp4j and slf4j jars> snmp.PollAllocationCheck [cycles] [oids]
+ */
+public class PollAllocationCheck {
+	static private final Logger LOGGER;
+	static {
+		LOGGER = LoggerFactory.getLogger(PollAllocationCheck.class);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int cycles = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+		int oids = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+
+		DefaultUdpTransportMapping responderTransport = new DefaultUdpTransportMapping(new UdpAddress("127.0.0.1/0"));
+		Snmp responder = new Snmp(responderTransport);
+		responder.addCommandResponder(new Echo());
+		responder.listen();
+
+		DefaultUdpTransportMapping transport = new DefaultUdpTransportMapping();
+		Snmp snmp = new Snmp(transport);
+		ResponseDispatcher dispatcher = new ResponseDispatcher(snmp);
+		snmp.listen();
+
+		CommunityTarget target = new CommunityTarget();
+		target.setCommunity(new OctetString("public"));
+		target.setAddress(responderTransport.getListenAddress());
+		target.setVersion(SnmpConstants.version2c);
+		target.setRetries(0);
+		target.setTimeout(1000);
+
+		String[] oidAttributes = new String[oids];
+		for (int i = 0; i < oids; i++) {
+			oidAttributes[i] = "1.3.6.1.4.1.99999.1." + i;
+		}
+
+		// warm up both paths before measuring
+		baseline(snmp, target, oidAttributes, cycles / 4);
+		batched(dispatcher, target, oidAttributes, cycles / 4);
+		long baseline = baseline(snmp, target, oidAttributes, cycles);
+		long batched = batched(dispatcher, target, oidAttributes, cycles);
+		report("baseline", baseline, cycles, oids);
+		report("batched", batched, cycles, oids);
+
+		snmp.close();
+		responder.close();
+	}
+
+	/**
+	 * Polls every OID with a GET of its own per cycle, as the link did
+	 * before batching, and returns the bytes allocated meanwhile.
+	 */
+	private static long baseline(Snmp snmp, CommunityTarget target, String[] oidAttributes, int cycles) throws Exception {
+		final Semaphore responses = new Semaphore(0);
+		final long[] responseThread = new long[1];
+		long before = -1;
+		for (int c = -1; c < cycles; c++) {
+			// the first round trip learns the response thread
+			if (c == 0) before = allocated(Thread.currentThread().getId()) + allocated(responseThread[0]);
+			for (final String oid: oidAttributes) {
+				PDU pdu = new PDU();
+				pdu.add(new VariableBinding(new OID(oid)));
+				pdu.setType(PDU.GET);
+				ResponseListener listener = new ResponseListener() {
+					public void onResponse(ResponseEvent event) {
+						LOGGER.debug("Received response PDU is: " + event.getResponse());
+						LOGGER.debug("Received response PDU Error is: " + event.getError());
+						LOGGER.debug("Received response PDU Peer Address is: " + event.getPeerAddress());
+						((Snmp) event.getSource()).cancel(event.getRequest(), this);
+						if (event.getResponse() != null) {
+							Variable var = event.getResponse().getVariable(new OID(oid));
+							if (var.getSyntax() == SMIConstants.SYNTAX_INTEGER) var.toLong();
+						}
+						responseThread[0] = Thread.currentThread().getId();
+						responses.release();
+					}
+				};
+				LOGGER.debug("sending pdu: " + pdu + "   to target: " + target);
+				snmp.send(pdu, target, null, listener);
+				await(responses);
+			}
+		}
+		return allocated(Thread.currentThread().getId()) + allocated(responseThread[0]) - before;
+	}
+
+	/**
+	 * Polls all OIDs with one reused GET per cycle, as a poll batch does,
+	 * and returns the bytes allocated meanwhile.
+	 */
+	private static long batched(ResponseDispatcher dispatcher, CommunityTarget target, String[] oidAttributes,
+			int cycles) throws Exception {
+		PDU pdu = new PDU();
+		for (String oid: oidAttributes) {
+			pdu.add(new VariableBinding(new OID(oid)));
+		}
+		pdu.setType(PDU.GET);
+		Counter counter = new Counter();
+		long before = -1;
+		for (int c = -1; c < cycles; c++) {
+			if (c == 0) before = allocated(Thread.currentThread().getId()) + allocated(counter.responseThread);
+			pdu.setRequestID(new Integer32(0));
+			dispatcher.send(pdu, target, counter);
+			await(counter.responses);
+		}
+		return allocated(Thread.currentThread().getId()) + allocated(counter.responseThread) - before;
+	}
+
+	private static void await(Semaphore responses) throws InterruptedException {
+		if (!responses.tryAcquire(5, TimeUnit.SECONDS)) throw new IllegalStateException("no response");
+	}
+
+	private static long allocated(long threadId) {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(threadId);
+	}
+
+	private static void report(String mode, long bytes, int cycles, int oids) {
+		System.out.println(mode + ": " + bytes / cycles + " bytes per cycle, " + bytes / cycles / oids + " per OID ("
+				+ cycles + " cycles of " + oids + " OIDs)");
+	}
+
+	private static class Counter implements ResponseDispatcher.Callback {
+		final Semaphore responses = new Semaphore(0);
+		volatile long responseThread;
+
+		public void onResponse(ResponseEvent event) {
+			PDU resp = event.getResponse();
+			if (resp == null) throw new IllegalStateException("request timed out");
+			for (int i = 0; i < resp.size(); i++) {
+				Variable var = resp.get(i).getVariable();
+				if (var.getSyntax() == SMIConstants.SYNTAX_INTEGER) var.toLong();
+			}
+			responseThread = Thread.currentThread().getId();
+			responses.release();
+		}
+	}
+
+	/**
+	 * Answers every GET with an Integer32 per requested OID.
+	 */
+	private static class Echo implements CommandResponder {
+		public void processPdu(CommandResponderEvent event) {
+			PDU request = event.getPDU();
+			if (request == null || request.getType() != PDU.GET) return;
+			PDU response = new PDU();
+			response.setType(PDU.RESPONSE);
+			response.setRequestID(request.getRequestID());
+			for (VariableBinding vb: request.toArray()) {
+				response.add(new VariableBinding(vb.getOid(), new Integer32(1)));
+			}
+			try {
+				event.getMessageDispatcher().returnResponsePdu(event.getMessageProcessingModel(), event.getSecurityModel(),
+						event.getSecurityName(), event.getSecurityLevel(), response, event.getMaxSizeResponsePDU(),
+						event.getStateReference(), new StatusInformation());
+			} catch (MessageException e) {
+				e.printStackTrace();
+			}
+			event.setProcessed(true);
+		}
+	}
+
+}